@@ -1,210 +1,3908 @@
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.text.SimpleDateFormat;
+import java.time.DateTimeException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
 
 public class HttpServer {
+    private static final int MAX_HEADER_SIZE = 64*1024;
+    private static final int MAX_LINE_SIZE = 8*1024;
+    private static final int MAX_HEADERS = 100;
+    private static final int MAX_REQUEST_SIZE = 16*1024*1024;
+    //Content-Length bodies up to this size are read before the handler runs, larger ones are streamed
+    private static final int EAGER_BODY_SIZE = 16*1024;
+    private static final int PIPE_SIZE = 64*1024;
+    //response bytes queued on a nio connection before a writing handler has to wait for the socket
+    private static final int MAX_QUEUED_BYTES = 256*1024;
+    private static final int COPY_BUFFER_SIZE = 64*1024;
+    //a Range header asking for more parts than this is ignored and the whole file is sent
+    private static final int MAX_RANGES = 16;
+    private static final ArrayBlockingQueue<byte[]> COPY_BUFFERS = new ArrayBlockingQueue<>(64);
+    //native zlib state is expensive to create, idle deflaters are kept here and reset between responses
+    private static final ArrayBlockingQueue<Deflater> GZIP_DEFLATERS = new ArrayBlockingQueue<>(32);
+    private static final ArrayBlockingQueue<Deflater> ZLIB_DEFLATERS = new ArrayBlockingQueue<>(32);
+    //IMF-fixdate, the form HTTP/1.1 senders must use
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter.ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+    //body bytes a handler may leave unread before the connection is closed instead of drained
+    private static final int MAX_DRAIN_SIZE = 1024*1024;
+    //a classic connection waiting for its next request checks this often whether other connections need its worker
+    private static final int IDLE_CHECK_INTERVAL = 250;
     private int port = 8080;
+    private Engine engine = Engine.CLASSIC;
+    private int eventLoops = Math.max(1, Runtime.getRuntime().availableProcessors()/2);
+    private NioEngine nio;
+    private boolean keepAlive = true;
+    private int maxKeepAliveRequests = 100;
+    private int keepAliveTimeout = 5000;
+    private int maxPipelinedRequests = 16;
+    private long maxBodySize = Long.MAX_VALUE;
+    private boolean compression = false;
+    private boolean recycle = false;
+    private int compressionMinSize = 1024;
+    private long asyncTimeout = 30000;
+    private int maxAsyncRequests = 10000;
+    private final AtomicInteger asyncRequests = new AtomicInteger();
+    //fires the timeouts of async requests
+    private ScheduledThreadPoolExecutor timers;
     private static final Map<String, String> MIME_TYPE = new HashMap<String, String>();
-    private List<Router> routers = new ArrayList<>();
+    //requests read whatever table is current, changes build a new one and swap it in
+    private volatile RouteTable routes = new RouteTable(new ArrayList<Router>(), 0);
+    private final Object routesLock = new Object();
     private ServerSocket serverSocket;
     private RouterHandler defaultHandler;
+    private ThreadMode threadMode = ThreadMode.POOL;
+    private int coreWorkers = Math.max(4, Runtime.getRuntime().availableProcessors());
+    private int maxWorkers = 200;
+    private int workerQueueSize = 1024;
+    private RejectPolicy rejectPolicy = RejectPolicy.SERVICE_UNAVAILABLE;
+    private ThreadPoolExecutor workers;
+    private ExecutorService virtualWorkers;
+    private boolean reportPinning = false;
+    private Object pinningMonitor;
+    private final AtomicLong pinnedEvents = new AtomicLong();
+    //requests, not connections, so both engines report the same thing
+    private final AtomicInteger activeRequests = new AtomicInteger();
+    private final AtomicLong completedRequests = new AtomicLong();
+    private final AtomicLong rejectedConnections = new AtomicLong();
 
     public HttpServer(){
         this(8080);
     }
     public HttpServer(int port){
+        this(port, Engine.CLASSIC);
+    }
+    public HttpServer(int port, Engine engine){
         this.port = port;
+        this.engine = engine;
         defaultHandler = new RouterHandler() {
             @Override
             public void handle(RouterContext context) throws IOException {
                 context.response.r404();
                 context.response.end();
             }
-        };
-    }
-    public void setDeafultHandler(RouterHandler handler){
-        defaultHandler = handler;
+        };
+    }
+    public void setDeafultHandler(RouterHandler handler){
+        defaultHandler = handler;
+    }
+    public void setLogHandler(HttpServer.LogHandler handler){
+        Log.handler = handler;
+    }
+    //persistent connections, HTTP/1.1 clients keep the socket open unless they send Connection: close
+    public void setKeepAlive(boolean enabled){
+        keepAlive = enabled;
+    }
+    //requests served on one connection before it is closed
+    public void setMaxKeepAliveRequests(int max){
+        if(max<1){
+            throw new IllegalArgumentException("max keep-alive requests must be >= 1");
+        }
+        maxKeepAliveRequests = max;
+    }
+    //how long an idle connection waits for its next request, in milliseconds
+    public void setKeepAliveTimeout(int millis){
+        if(millis<1){
+            throw new IllegalArgumentException("keep-alive timeout must be >= 1");
+        }
+        keepAliveTimeout = millis;
+    }
+    //pipelined requests read ahead on one connection, they are still handled one by one and answered in order
+    public void setMaxPipelinedRequests(int max){
+        if(max<1){
+            throw new IllegalArgumentException("max pipelined requests must be >= 1");
+        }
+        maxPipelinedRequests = max;
+    }
+    //gzip/deflate for text, json, javascript and xml responses of clients that accept it, off by default,
+    //a handler can still switch it per response with Response.setCompression
+    public void setCompression(boolean enabled){
+        compression = enabled;
+    }
+    //smaller bodies are sent as they are, streamed bodies are always compressed
+    public void setCompressionMinSize(int size){
+        compressionMinSize = size;
+    }
+    //reuse the RouterContext, Request and Response of a connection for its next request instead of allocating new ones.
+    //handlers must then not keep any of them, or the maps they hand out, once handle() has returned
+    public void setRecycleContexts(boolean enabled){
+        recycle = enabled;
+    }
+    //an async handler whose stage has not completed after this many milliseconds is answered with 504, 0 waits forever
+    public void setAsyncTimeout(long millis){
+        if(millis<0){
+            throw new IllegalArgumentException("async timeout must be >= 0");
+        }
+        asyncTimeout = millis;
+    }
+    //async requests waiting for their stage at the same time, more get 503 without calling the handler
+    public void setMaxAsyncRequests(int max){
+        if(max<1){
+            throw new IllegalArgumentException("max async requests must be >= 1");
+        }
+        maxAsyncRequests = max;
+    }
+    //largest request body accepted, in bytes, larger ones get 413 Payload Too Large
+    public void setMaxBodySize(long max){
+        if(max<0){
+            throw new IllegalArgumentException("max body size must be >= 0");
+        }
+        maxBodySize = max;
+    }
+    //number of selector threads used by Engine.NIO
+    public void setEventLoops(int count){
+        if(count<1){
+            throw new IllegalArgumentException("event loops must be >= 1");
+        }
+        eventLoops = count;
+    }
+    //POOL: bounded worker pool (default), VIRTUAL: one virtual thread per connection (java 21+),
+    //THREAD_PER_CONNECTION: legacy, one new platform thread per socket
+    public void setThreadMode(ThreadMode mode){
+        threadMode = mode;
+    }
+    //core/max take effect immediately on a running pool, queueSize on next start()
+    public void setWorkerPool(int core, int max, int queueSize){
+        if(core<1||max<core||queueSize<0){
+            throw new IllegalArgumentException("invalid worker pool size: core="+core+", max="+max+", queue="+queueSize);
+        }
+        coreWorkers = core;
+        maxWorkers = max;
+        workerQueueSize = queueSize;
+        ThreadPoolExecutor pool = workers;
+        if(pool!=null){
+            if(max>=pool.getCorePoolSize()){
+                pool.setMaximumPoolSize(max);
+                pool.setCorePoolSize(core);
+            }else{
+                pool.setCorePoolSize(core);
+                pool.setMaximumPoolSize(max);
+            }
+        }
+    }
+    public void setRejectPolicy(RejectPolicy policy){
+        rejectPolicy = policy;
+    }
+    //log every jdk.VirtualThreadPinned JFR event while running in VIRTUAL mode
+    public void setReportPinning(boolean report){
+        reportPinning = report;
+    }
+    public PoolStats getPoolStats(){
+        PoolStats stats = new PoolStats();
+        stats.active = activeRequests.get();
+        stats.completed = completedRequests.get();
+        stats.rejected = rejectedConnections.get();
+        stats.pinned = pinnedEvents.get();
+        stats.async = asyncRequests.get();
+        ThreadPoolExecutor pool = workers;
+        if(pool!=null){
+            stats.queued = pool.getQueue().size();
+            stats.poolSize = pool.getPoolSize();
+            stats.largestPoolSize = pool.getLargestPoolSize();
+        }
+        return stats;
+    }
+    public void start() throws IOException{
+        if(engine==Engine.NIO){
+            startNio();
+            return;
+        }
+        if(serverSocket==null){
+            //a blocking channel, so accepted sockets have a channel for FileChannel.transferTo
+            ServerSocketChannel channel = ServerSocketChannel.open();
+            channel.socket().setReuseAddress(true);
+            channel.socket().bind(new InetSocketAddress(port));
+            serverSocket = channel.socket();
+            Log.info("HttpServer start on port: "+port);
+        }
+        startWorkers();
+        startClassic();
+    }
+    private void startNio() throws IOException{
+        if(nio!=null){
+            return;
+        }
+        ServerSocketChannel channel = ServerSocketChannel.open();
+        channel.socket().setReuseAddress(true);
+        channel.socket().bind(new InetSocketAddress(port));
+        serverSocket = channel.socket();
+        startWorkers();
+        nio = new NioEngine(channel, eventLoops);
+        Log.info("HttpServer(nio) start on port: "+port);
+    }
+    private void startWorkers(){
+        if(threadMode==ThreadMode.VIRTUAL&&(virtualWorkers==null||virtualWorkers.isShutdown())){
+            virtualWorkers = createVirtualWorkers();
+            if(virtualWorkers==null){
+                Log.error("virtual threads need java 21+, fall back to worker pool");
+            }else if(reportPinning&&pinningMonitor==null){
+                pinningMonitor = startPinningMonitor();
+            }
+        }
+        if(threadMode!=ThreadMode.THREAD_PER_CONNECTION&&virtualWorkers==null&&(workers==null||workers.isShutdown())){
+            workers = createWorkerPool();
+        }
+        if(timers==null){
+            timers = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "HttpServer-async-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            timers.setRemoveOnCancelPolicy(true);
+        }
+    }
+    private void startClassic(){
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(!isClosed()){
+                    try{
+                        Socket socket = serverSocket.accept();
+                        //Log.info(socket.getInetAddress().getHostAddress()+" connected");
+                        service(socket);
+                    }catch (IOException e){
+                        if(isClosed()){
+                            break;
+                        }
+                        Log.error(e.getMessage());
+                        e.printStackTrace();
+                    }
+                }
+            }
+        }, "HttpServer-acceptor").start();
+    }
+    private ThreadPoolExecutor createWorkerPool(){
+        final AtomicInteger index = new AtomicInteger();
+        ThreadFactory factory = new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable r) {
+                return new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        BufferPool.attach();
+                        try{
+                            r.run();
+                        }finally{
+                            BufferPool.detach();
+                        }
+                    }
+                }, "HttpServer-worker-"+index.incrementAndGet());
+            }
+        };
+        RejectedExecutionHandler rejectHandler = new RejectedExecutionHandler() {
+            @Override
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                //the pool did not grow after all, the queue still takes the connection if it has room
+                if(executor.getQueue() instanceof WorkerQueue&&!executor.isShutdown()&&((WorkerQueue) executor.getQueue()).force(r)){
+                    return;
+                }
+                rejectedConnections.incrementAndGet();
+                ConnectionTask task = (ConnectionTask) r;
+                if(rejectPolicy==RejectPolicy.CALLER_RUNS&&!executor.isShutdown()&&task.callerRuns()){
+                    task.run();
+                }else{
+                    task.reject(rejectPolicy!=RejectPolicy.DROP);
+                }
+            }
+        };
+        //a zero size queue means hand-off only, each connection needs a free worker
+        WorkerQueue queue = workerQueueSize>0?new WorkerQueue(workerQueueSize):null;
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(coreWorkers, maxWorkers, 60, TimeUnit.SECONDS,
+                queue!=null?queue:new SynchronousQueue<Runnable>(), factory, rejectHandler);
+        if(queue!=null){
+            queue.pool = pool;
+        }
+        return pool;
+    }
+    //ThreadPoolExecutor only adds threads above core once its queue is full, and a worker holds its connection
+    //while it waits for the next keep-alive request, so new connections would wait behind idle ones.
+    //this queue turns a task away while every thread is busy and the pool may still grow, the pool then starts a thread
+    private static class WorkerQueue extends ArrayBlockingQueue<Runnable>{
+        private static final long serialVersionUID = 1L;
+        private volatile ThreadPoolExecutor pool;
+        WorkerQueue(int capacity){
+            super(capacity);
+        }
+        @Override
+        public boolean offer(Runnable task){
+            ThreadPoolExecutor executor = pool;
+            if(executor!=null&&executor.getPoolSize()<executor.getMaximumPoolSize()
+                    &&executor.getActiveCount()>=executor.getPoolSize()){
+                return false;
+            }
+            return super.offer(task);
+        }
+        boolean force(Runnable task){
+            return super.offer(task);
+        }
+    }
+    //connections are waiting for a worker, so one that is idle between requests should give its worker up
+    private boolean saturated(){
+        ThreadPoolExecutor pool = workers;
+        return pool!=null&&!pool.getQueue().isEmpty();
+    }
+    //looked up reflectively so the server still compiles and runs on java 8
+    private ExecutorService createVirtualWorkers(){
+        try{
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "HttpServer-virtual-", 1L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            return (ExecutorService) Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, factory);
+        }catch(Exception e){
+            return null;
+        }
+    }
+    //a jfr RecordingStream on jdk.VirtualThreadPinned, pinning blocks the carrier thread
+    //(synchronized or native frames around blocking io) and shows up here with its stack trace
+    private Object startPinningMonitor(){
+        try{
+            Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+            Object stream = streamClass.getConstructor().newInstance();
+            Object settings = streamClass.getMethod("enable", String.class).invoke(stream, "jdk.VirtualThreadPinned");
+            Class.forName("jdk.jfr.EventSettings").getMethod("withStackTrace").invoke(settings);
+            streamClass.getMethod("onEvent", String.class, Consumer.class).invoke(stream, "jdk.VirtualThreadPinned", new Consumer<Object>() {
+                @Override
+                public void accept(Object event) {
+                    pinnedEvents.incrementAndGet();
+                    Log.error("virtual thread pinned: "+event);
+                }
+            });
+            streamClass.getMethod("startAsync").invoke(stream);
+            return stream;
+        }catch(Exception e){
+            Log.error("pinning monitor unavailable: "+e);
+            return null;
+        }
+    }
+    public boolean isClosed(){
+        if(serverSocket==null){
+            return true;
+        }
+        return serverSocket.isClosed();
+    }
+    public void stop() throws IOException{
+        if(serverSocket!=null){
+            serverSocket.close();
+        }
+        if(nio!=null){
+            nio.shutdown();
+            nio = null;
+        }
+        if(workers!=null){
+            workers.shutdown();
+        }
+        if(virtualWorkers!=null){
+            virtualWorkers.shutdown();
+            virtualWorkers = null;
+        }
+        if(timers!=null){
+            timers.shutdownNow();
+            timers = null;
+        }
+        if(pinningMonitor!=null){
+            try{
+                pinningMonitor.getClass().getMethod("close").invoke(pinningMonitor);
+            }catch(Exception e){
+                Log.error(e.getMessage());
+            }
+            pinningMonitor = null;
+        }
+        BufferPool.reportLeaks();
+    }
+    //"/user/:id" captures a segment, "/static/*" matches the prefix and everything below it.
+    //static segments win over captures and captures over prefixes, the first route added for a path is kept
+    public HttpServer addRouter(Router router){
+        synchronized(routesLock){
+            List<Router> routers = new ArrayList<>(routes.routers);
+            routers.add(router);
+            routes = new RouteTable(routers, routes.version+1);
+        }
+        return this;
+    }
+    public HttpServer addRouter(String path,RouterHandler handler){
+        return addRouter(new Router(path,handler));
+    }
+    //the handler returns a CompletionStage and the worker thread is free as soon as it has,
+    //the response is ended when the stage completes, see setAsyncTimeout and setMaxAsyncRequests
+    public HttpServer addAsyncRouter(String path,AsyncRouterHandler handler){
+        return addRouter(new Router(path,handler));
+    }
+    //removes every route added with this path, safe while the server is running
+    public HttpServer removeRouter(String path){
+        synchronized(routesLock){
+            List<Router> routers = new ArrayList<>();
+            for(Router router : routes.routers){
+                if(!router.path.equals(path)){
+                    routers.add(router);
+                }
+            }
+            routes = new RouteTable(routers, routes.version+1);
+        }
+        return this;
+    }
+    //swaps in a whole new set of routes at once, requests see either the old set or the new one
+    public HttpServer replaceRoutes(List<Router> routers){
+        synchronized(routesLock){
+            routes = new RouteTable(new ArrayList<>(routers), routes.version+1);
+        }
+        return this;
+    }
+    public List<Router> getRouters(){
+        return routes.routers;
+    }
+    //bumped by every route change
+    public long getRoutesVersion(){
+        return routes.version;
+    }
+
+    private void service(Socket socket){
+        dispatch(new Connection(socket));
+    }
+    private void dispatch(ConnectionTask task){
+        if(threadMode==ThreadMode.THREAD_PER_CONNECTION){
+            new Thread(task).start();
+            return;
+        }
+        if(virtualWorkers!=null){
+            virtualWorkers.execute(task);
+            return;
+        }
+        workers.execute(task);
+    }
+    //the stage of an async handler, null once the request is answered
+    private CompletionStage<?> handle(RouterContext context) throws IOException{
+        Request request = context.request;
+        Log.info(request.method+" "+request.uri);
+        String uri = request.uri;
+        int start = uri.startsWith("/")?1:0;
+        int end = uri.indexOf('?');
+        if(end<0){
+            end = uri.length();
+        }
+        //trailing slashes are ignored, "/u/42/" is "/u/42"
+        while(end>start&&uri.charAt(end-1)=='/'){
+            end--;
+        }
+        RouteNode root = routes.root;
+        int[] params = root.params==0?null:context.params!=null&&context.params.length>=root.params*2?context.params:new int[root.params*2];
+        Route route = root.find(uri, start, end, params, 0);
+        Router router = route==null?null:route.router;
+        context.router = router;
+        context.path = uri;
+        context.params = params;
+        context.paramNames = route==null?null:route.params;
+        if(router==null){
+            Log.info("no route match");
+            defaultHandler.handle(context);
+            return null;
+        }
+        Log.info("router["+router.path+"]matched");
+        if(router.asyncHandler!=null&&asyncRequests.get()>=maxAsyncRequests){
+            Log.error("too many async requests, "+request.uri+" gets 503");
+            context.response.r503();
+            context.response.end();
+            return null;
+        }
+        return router.dispatch(context);
+    }
+    //a request whose handler returned a stage, settled by the stage or by the timeout, whichever comes first.
+    //the connection task is then dispatched again and calls finish() to answer what the handler left open.
+    //a timeout only takes the response while nothing of it was sent, a handler that already started one
+    //keeps it and its stream until the stage completes
+    private class AsyncExchange implements Runnable{
+        private static final int PENDING = 0, RESUMED = 1, STARTED = 2, TIMING = 3;
+        final RouterContext context;
+        private final ConnectionTask resume;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private volatile ScheduledFuture<?> timer;
+        private volatile boolean completed = false;
+        private volatile Throwable error;
+        private volatile boolean timedOut = false;
+        AsyncExchange(RouterContext context, ConnectionTask resume){
+            this.context = context;
+            this.resume = resume;
+        }
+        void start(CompletionStage<?> stage){
+            asyncRequests.incrementAndGet();
+            //the timer is in place before the stage can complete and cancel it
+            ScheduledThreadPoolExecutor scheduler = timers;
+            if(asyncTimeout>0&&scheduler!=null){
+                try{
+                    timer = scheduler.schedule(this, asyncTimeout, TimeUnit.MILLISECONDS);
+                }catch(RejectedExecutionException e){
+                    Log.error("async timeout not scheduled, the server is stopping");
+                }
+            }
+            stage.whenComplete(new BiConsumer<Object, Throwable>() {
+                @Override
+                public void accept(Object result, Throwable error) {
+                    complete(error);
+                }
+            });
+        }
+        //the timeout
+        @Override
+        public void run(){
+            if(!state.compareAndSet(PENDING, TIMING)){
+                return;
+            }
+            //nothing was sent yet, the handler's own end() or startStream() fails from now on
+            if(context.response.claim()){
+                timedOut = true;
+                state.set(RESUMED);
+                resume();
+                return;
+            }
+            Log.error("async request timed out after "+asyncTimeout+"ms with its response started, left to the handler: "+context.request.uri);
+            state.set(STARTED);
+            if(completed&&state.compareAndSet(STARTED, RESUMED)){
+                resume();
+            }
+        }
+        private void complete(Throwable error){
+            this.error = error;
+            completed = true;
+            ScheduledFuture<?> timer = this.timer;
+            if(timer!=null){
+                timer.cancel(false);
+            }
+            if(state.compareAndSet(PENDING, RESUMED)||state.compareAndSet(STARTED, RESUMED)){
+                resume();
+            }
+        }
+        //always through the pool, this thread may be the timer, an event loop or a backend's callback thread
+        private void resume(){
+            asyncRequests.decrementAndGet();
+            try{
+                dispatch(resume);
+            }catch(RejectedExecutionException e){
+                resume.reject(true);
+            }
+        }
+        //the pool refused the resumed request, nothing of it runs on this thread
+        void reject(OutputStream out){
+            Log.error("no worker to resume async request "+context.request.uri+", it gets "+(timedOut?504:503));
+            Response response = context.response;
+            response.keepAlive = false;
+            if(!timedOut&&!response.claim()){
+                return;
+            }
+            try{
+                Response reply = new Response(out);
+                if(timedOut){
+                    reply.r504();
+                }else{
+                    reply.r503();
+                }
+                reply.end();
+            }catch(IOException e){
+                Log.error(e.getMessage());
+            }
+        }
+        //true when the response was completed and nobody holds the context any more,
+        //false when the connection has to be closed and the context must not be reused
+        boolean finish(OutputStream out){
+            Response response = context.response;
+            Throwable cause = error instanceof CompletionException&&error.getCause()!=null?error.getCause():error;
+            try{
+                if(timedOut){
+                    //the timer already holds the response, a handler that is still running cannot write to out
+                    Log.error("async request timed out after "+asyncTimeout+"ms: "+context.request.uri);
+                    response.keepAlive = false;
+                    Response reply = new Response(out);
+                    reply.r504();
+                    reply.end();
+                    return false;
+                }
+                if(cause==null){
+                    if(!response.isCommitted()){
+                        response.end();
+                    }
+                    return true;
+                }
+                Log.error("async request failed: "+cause);
+                cause.printStackTrace();
+                response.keepAlive = false;
+                if(response.claim()){
+                    Response reply = new Response(out);
+                    if(cause instanceof TimeoutException){
+                        reply.r504();
+                    }else if(cause instanceof RejectedExecutionException){
+                        reply.r503();
+                    }else{
+                        reply.r500();
+                    }
+                    reply.end();
+                }
+            }catch(IOException e){
+                Log.error(e.getMessage());
+            }
+            return false;
+        }
+    }
+    private interface ConnectionTask extends Runnable{
+        //called instead of run() when the worker pool is saturated
+        void reject(boolean reply);
+        //whether CALLER_RUNS may run the task on the thread that dispatched it
+        boolean callerRuns();
+    }
+    //what a response needs to know about its request and the server settings
+    //spare is the context of the previous request on the connection when recycling is on, reset and used again
+    private RouterContext newContext(RouterContext spare, RawRequest raw, InputStream body, OutputStream out, int served, Socket socket){
+        RouterContext context = spare;
+        if(context==null){
+            context = new RouterContext();
+            context.request = new Request(raw, body);
+            context.response = new Response(out);
+        }else{
+            context.reset();
+            context.request.reset(raw, body);
+            context.response.reset(out);
+        }
+        context.socket = socket;
+        Request request = context.request;
+        Response response = context.response;
+        response.keepAlive = keepAlive(request, served);
+        response.http10 = "HTTP/1.0".equals(request.version);
+        response.headRequest = "HEAD".equals(request.method);
+        response.acceptEncoding = request.getHeader("Accept-Encoding");
+        response.compression = compression;
+        response.compressionMinSize = compressionMinSize;
+        return context;
+    }
+    private boolean keepAlive(Request request, int served){
+        if(!keepAlive||served>=maxKeepAliveRequests||isClosed()){
+            return false;
+        }
+        String connection = request.getHeader("Connection");
+        if(connection!=null){
+            connection = connection.toLowerCase();
+        }
+        if("HTTP/1.0".equals(request.version)){
+            return connection!=null&&connection.indexOf("keep-alive")>=0;
+        }
+        return connection==null||connection.indexOf("close")<0;
+    }
+    private class Connection implements ConnectionTask{
+        private final Socket socket;
+        private SocketBuffer input;
+        private ExchangeOutputStream out;
+        private final RequestParser parser = new RequestParser();
+        private RouterContext spare;
+        private int served = 0;
+        //body of the request being answered, what the handler left of it is skipped before the next request
+        private DecodingInputStream body;
+        private ContinueInputStream expect;
+        //set while an async handler has the request, the connection is dispatched again when it is settled
+        private AsyncExchange async;
+        //a request of this connection is counted as active
+        private boolean answering = false;
+        Connection(Socket socket){
+            this.socket = socket;
+        }
+        @Override
+        public void run(){
+            boolean suspended = false;
+            try{
+                if(async!=null){
+                    AsyncExchange exchange = async;
+                    async = null;
+                    if(!exchange.finish(out)||!next(exchange.context)){
+                        return;
+                    }
+                }else{
+                    socket.setTcpNoDelay(true);
+                    socket.setSoTimeout(keepAliveTimeout);
+                    out = new ExchangeOutputStream(socket.getOutputStream(), socket.getChannel());
+                    input = new SocketBuffer(socket.getInputStream(), out);
+                }
+                int idle = 0;
+                while(true){
+                    RawRequest raw;
+                    int slice = Math.min(keepAliveTimeout, IDLE_CHECK_INTERVAL);
+                    try{
+                        socket.setSoTimeout(slice);
+                        raw = input.readRequest(parser, maxBodySize);
+                        socket.setSoTimeout(keepAliveTimeout);
+                    }catch(SocketTimeoutException e){
+                        //the wait is cut into slices, between them an idle connection gives way to queued ones
+                        idle += slice;
+                        if(idle<keepAliveTimeout&&!(input.start>=input.length&&saturated())){
+                            continue;
+                        }
+                        break;
+                    }catch(BadRequestException e){
+                        out.open();
+                        Response response = new Response(out);
+                        response.setStatus(e.status, e.reason);
+                        response.setContentType("text/html");
+                        response.end("<h1>"+e.status+" "+e.reason+"</h1>");
+                        break;
+                    }
+                    if(raw==null){
+                        break;
+                    }
+                    idle = 0;
+                    served++;
+                    activeRequests.incrementAndGet();
+                    answering = true;
+                    out.open();
+                    body = raw.decoder==null?null:new DecodingInputStream(input, raw.decoder);
+                    expect = body!=null&&raw.expectContinue?new ContinueInputStream(body, out):null;
+                    RouterContext context = newContext(spare, raw, expect!=null?expect:body, out, served, socket);
+                    spare = null;
+                    CompletionStage<?> stage = handle(context);
+                    if(stage!=null){
+                        //this thread goes back to the pool, run() continues on whichever worker gets the connection next
+                        suspended = true;
+                        AsyncExchange exchange = new AsyncExchange(context, this);
+                        async = exchange;
+                        exchange.start(stage);
+                        return;
+                    }
+                    if(!next(context)){
+                        break;
+                    }
+                }
+            }catch (Exception e){
+                e.printStackTrace();
+            }finally{
+                if(!suspended){
+                    close();
+                }
+            }
+        }
+        //false when the connection cannot serve another request
+        private boolean next(RouterContext context) throws IOException{
+            answered();
+            spare = recycle?context:null;
+            //a handler that never called end() leaves the connection in an unknown state
+            if(!out.isClosed()||!context.response.keepAlive){
+                return false;
+            }
+            //the unread rest of the body comes before the next request, a client still waiting for
+            //100 Continue never sends it
+            if(body!=null&&(expect!=null&&!expect.sent||!body.skipRemaining(MAX_DRAIN_SIZE))){
+                return false;
+            }
+            //a keep-alive connection with nothing buffered would hold its worker until the next request or the timeout
+            if(input.start>=input.length&&saturated()){
+                return false;
+            }
+            //responses to pipelined requests are written together, at most maxPipelinedRequests at a time
+            if(out.unflushed>=maxPipelinedRequests){
+                out.flush();
+            }
+            return true;
+        }
+        private void close(){
+            if(out!=null){
+                try{
+                    out.flush();
+                }catch(IOException e){
+                    Log.error(e.getMessage());
+                }
+            }
+            closeQuietly(socket);
+            answered();
+        }
+        private void answered(){
+            if(answering){
+                answering = false;
+                activeRequests.decrementAndGet();
+                completedRequests.incrementAndGet();
+            }
+        }
+        //only a new connection, on the acceptor thread, never a resumed async request
+        @Override
+        public boolean callerRuns(){
+            return async==null;
+        }
+        @Override
+        public void reject(boolean reply){
+            //no worker to finish a settled async request, it gets 503 unless its response was already started
+            if(out!=null){
+                if(async!=null){
+                    async.reject(out);
+                }
+                close();
+                return;
+            }
+            try{
+                if(reply){
+                    Response response = new Response(socket);
+                    response.r503();
+                    response.end();
+                }
+            }catch(IOException e){
+                Log.error(e.getMessage());
+            }finally{
+                try{
+                    socket.close();
+                }catch(IOException e){
+                    Log.error(e.getMessage());
+                }
+            }
+        }
+    }
+
+    //non-blocking engine: event loops own the sockets and do all reads and writes,
+    //a complete request is handed to the worker pool, the response is written back by the loop
+    private class NioEngine{
+        private final ServerSocketChannel server;
+        private final EventLoop[] loops;
+        private int next = 0;
+        NioEngine(ServerSocketChannel server, int loopCount) throws IOException{
+            this.server = server;
+            loops = new EventLoop[loopCount];
+            for(int i=0;i<loopCount;i++){
+                loops[i] = new EventLoop("HttpServer-nio-"+(i+1));
+            }
+            server.configureBlocking(false);
+            server.register(loops[0].selector, SelectionKey.OP_ACCEPT, this);
+            for(EventLoop loop : loops){
+                loop.thread.start();
+            }
+        }
+        //runs on the first loop
+        void accept() throws IOException{
+            SocketChannel channel;
+            while((channel=server.accept())!=null){
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                EventLoop loop = loops[next];
+                next = (next+1)%loops.length;
+                loop.register(channel);
+            }
+        }
+        void shutdown(){
+            for(EventLoop loop : loops){
+                loop.shutdown();
+            }
+        }
+    }
+    private class EventLoop implements Runnable{
+        final Selector selector;
+        final Thread thread;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        private volatile boolean running = true;
+        private long lastSweep = System.currentTimeMillis();
+        EventLoop(String name) throws IOException{
+            selector = Selector.open();
+            thread = new Thread(this, name);
+        }
+        void execute(Runnable task){
+            tasks.add(task);
+            selector.wakeup();
+        }
+        void register(final SocketChannel channel){
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    try{
+                        NioConnection connection = new NioConnection(EventLoop.this, channel);
+                        connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                    }catch(IOException e){
+                        Log.error(e.getMessage());
+                        closeQuietly(channel);
+                    }
+                }
+            });
+        }
+        void shutdown(){
+            running = false;
+            selector.wakeup();
+        }
+        //closes keep-alive connections that have been waiting longer than keepAliveTimeout
+        private void sweep(){
+            long now = System.currentTimeMillis();
+            if(now-lastSweep<1000){
+                return;
+            }
+            lastSweep = now;
+            for(SelectionKey key : selector.keys()){
+                Object attachment = key.attachment();
+                if(attachment instanceof NioConnection&&((NioConnection) attachment).isIdle(now)){
+                    ((NioConnection) attachment).close();
+                }
+            }
+        }
+        @Override
+        public void run(){
+            BufferPool.attach();
+            while(running){
+                try{
+                    selector.select(1000);
+                    Runnable task;
+                    while((task=tasks.poll())!=null){
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while(keys.hasNext()){
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if(!key.isValid()){
+                            continue;
+                        }
+                        Object attachment = key.attachment();
+                        if(attachment instanceof NioEngine){
+                            ((NioEngine) attachment).accept();
+                            continue;
+                        }
+                        NioConnection connection = (NioConnection) attachment;
+                        try{
+                            if(key.isReadable()){
+                                connection.onRead();
+                            }
+                            if(key.isValid()&&key.isWritable()){
+                                connection.onWrite();
+                            }
+                        }catch(IOException e){
+                            connection.close();
+                        }
+                    }
+                    sweep();
+                }catch(IOException e){
+                    Log.error(e.getMessage());
+                }
+            }
+            for(SelectionKey key : selector.keys()){
+                if(key.attachment() instanceof NioConnection){
+                    ((NioConnection) key.attachment()).close();
+                }else{
+                    closeQuietly(key.channel());
+                }
+            }
+            try{
+                selector.close();
+            }catch(IOException e){
+                Log.error(e.getMessage());
+            }
+            BufferPool.detach();
+        }
+    }
+    private class NioConnection{
+        final EventLoop loop;
+        final SocketChannel channel;
+        SelectionKey key;
+        private ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        private final ArrayDeque<ByteBuffer> writeQueue = new ArrayDeque<>();
+        //entries of writeQueue that go back to the BufferPool once written
+        private final Set<ByteBuffer> pooled = Collections.newSetFromMap(new IdentityHashMap<ByteBuffer, Boolean>());
+        //file body of the current response, after writeQueue
+        private FileRegion region;
+        //framed requests waiting for the one in flight, a BadRequestException entry is answered in its turn
+        private final ArrayDeque<Object> pipeline = new ArrayDeque<>();
+        private final RequestParser parser = new RequestParser();
+        //context of a finished exchange, taken by the next one when recycling is on
+        final AtomicReference<RouterContext> spare = new AtomicReference<>();
+        //request whose streamed body is still arriving, its body bytes come before the next head
+        private RawRequest receiving;
+        private RawRequest inFlight;
+        //a reader made room in a full body pipe
+        private final Runnable resume = new Runnable() {
+            @Override
+            public void run() {
+                loop.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(key.isValid()){
+                            next();
+                        }
+                    }
+                });
+            }
+        };
+        //a request is with a worker, the next pipelined one is dispatched when its response is written
+        private boolean busy = false;
+        //written by handlers, drained by the loop
+        private final AtomicLong queued = new AtomicLong();
+        private final ReentrantLock drainLock = new ReentrantLock();
+        private final Condition drained = drainLock.newCondition();
+        private boolean closeAfterWrite = false;
+        private boolean responseDone = false;
+        private boolean inputClosed = false;
+        private int served = 0;
+        private long lastActive = System.currentTimeMillis();
+        NioConnection(EventLoop loop, SocketChannel channel){
+            this.loop = loop;
+            this.channel = channel;
+        }
+        void onRead() throws IOException{
+            if(!readBuffer.hasRemaining()){
+                grow(readBuffer.capacity()*2);
+            }
+            if(!readBuffer.hasRemaining()){
+                fail(413, "Payload Too Large");
+                next();
+                return;
+            }
+            if(channel.read(readBuffer)<0){
+                //a half-closed client still gets the answers to what it already sent
+                inputClosed = true;
+                if(receiving!=null){
+                    receiving.pipe.finish(new EOFException("connection closed in the middle of the request body"));
+                    receiving = null;
+                }
+            }else{
+                lastActive = System.currentTimeMillis();
+            }
+            next();
+        }
+        private void grow(int capacity){
+            ByteBuffer buffer = ByteBuffer.allocate(Math.min(capacity, MAX_REQUEST_SIZE));
+            readBuffer.flip();
+            buffer.put(readBuffer);
+            readBuffer = buffer;
+        }
+        //splits every complete request out of the read buffer, at most maxPipelinedRequests are queued
+        private void frame(){
+            while(pipeline.size()<maxPipelinedRequests&&!closeAfterWrite&&readBuffer.position()>0){
+                if(receiving!=null){
+                    if(!feedBody()){
+                        return;
+                    }
+                    continue;
+                }
+                int length;
+                try{
+                    if(!parser.parse(readBuffer.array(), readBuffer.position())){
+                        return;
+                    }
+                    length = parser.frameLength(maxBodySize);
+                }catch(BadRequestException e){
+                    fail(e.status, e.reason);
+                    return;
+                }
+                if(length>readBuffer.position()){
+                    if(length>readBuffer.capacity()){
+                        grow(length);
+                    }
+                    return;
+                }
+                RawRequest request = parser.take(readBuffer.array(), length, maxBodySize);
+                discard(length);
+                if(request.decoder!=null){
+                    request.pipe = new BodyPipe(resume);
+                    receiving = request;
+                }
+                pipeline.add(request);
+                parser.reset();
+            }
+        }
+        //moves body bytes from the read buffer into the pipe of the receiving request, true once the body is complete
+        private boolean feedBody(){
+            BodyPipe pipe = receiving.pipe;
+            BodyDecoder decoder = receiving.decoder;
+            byte[] data = readBuffer.array();
+            int off = 0;
+            int end = readBuffer.position();
+            try{
+                while(off<end&&!decoder.isDone()){
+                    int max = pipe.discard?Integer.MAX_VALUE:pipe.free();
+                    if(max==0){
+                        break;
+                    }
+                    off += decoder.consume(data, off, end, max);
+                    if(decoder.contentLength==0){
+                        continue;
+                    }
+                    if(!pipe.discard){
+                        pipe.offer(data, decoder.contentOffset, decoder.contentLength);
+                    }else if((pipe.discarded += decoder.contentLength)>MAX_DRAIN_SIZE){
+                        //not worth reading, the connection is closed instead
+                        receiving = null;
+                        inputClosed = true;
+                        readBuffer.clear();
+                        return false;
+                    }
+                }
+            }catch(BadRequestException e){
+                //the framing is lost, the handler sees the error and the connection closes after its response
+                pipe.finish(e);
+                receiving = null;
+                inputClosed = true;
+                readBuffer.clear();
+                return false;
+            }
+            discard(off);
+            if(decoder.isDone()){
+                pipe.finish(null);
+                receiving = null;
+                return true;
+            }
+            return false;
+        }
+        //drops the first length bytes of the read buffer
+        private void discard(int length){
+            readBuffer.flip();
+            readBuffer.position(length);
+            readBuffer.compact();
+        }
+        //nothing after a malformed request can be framed, so reading stops here
+        private void fail(int status, String reason){
+            pipeline.add(new BadRequestException(status, reason));
+            inputClosed = true;
+            readBuffer.clear();
+        }
+        //dispatches the next queued request once the previous response has been written
+        private void next(){
+            frame();
+            if(!busy&&!closeAfterWrite){
+                Object head = pipeline.poll();
+                if(head instanceof BadRequestException){
+                    reply(((BadRequestException) head).status, ((BadRequestException) head).reason);
+                }else if(head!=null){
+                    busy = true;
+                    served++;
+                    inFlight = (RawRequest) head;
+                    dispatch(new NioExchange(this, inFlight, served));
+                }else if(inputClosed&&writeQueue.isEmpty()){
+                    close();
+                    return;
+                }
+            }
+            updateInterest();
+        }
+        private void updateInterest(){
+            if(!key.isValid()){
+                return;
+            }
+            int ops = 0;
+            //reading pauses while the body pipe is full
+            if(!inputClosed&&!closeAfterWrite&&pipeline.size()<maxPipelinedRequests
+                    &&(receiving==null||receiving.pipe.discard||receiving.pipe.free()>0)){
+                ops |= SelectionKey.OP_READ;
+            }
+            if(!writeQueue.isEmpty()||region!=null){
+                ops |= SelectionKey.OP_WRITE;
+            }
+            key.interestOps(ops);
+        }
+        private void reply(int status, String reason){
+            busy = true;
+            Response response = new Response(new NioOutputStream(this));
+            response.setStatus(status, reason);
+            response.setContentType("text/html");
+            try{
+                response.end("<h1>"+status+" "+reason+"</h1>");
+            }catch(IOException e){
+                close();
+            }
+        }
+        void send(ByteBuffer buffer, boolean last, boolean keepAlive){
+            send(buffer, false, null, last, keepAlive);
+        }
+        //called from any thread, last marks the end of the response, a file goes out after the buffers.
+        //a buffer from the BufferPool is owned by the connection from here on
+        void send(final ByteBuffer buffer, final boolean fromPool, final FileRegion file, final boolean last, final boolean keepAlive){
+            if(buffer!=null){
+                queued.addAndGet(buffer.remaining());
+            }
+            loop.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if(buffer!=null&&fromPool&&!key.isValid()){
+                        BufferPool.release(buffer);
+                    }else if(buffer!=null){
+                        writeQueue.add(buffer);
+                        if(fromPool){
+                            pooled.add(buffer);
+                        }
+                    }
+                    if(file!=null&&key.isValid()){
+                        region = file;
+                    }else if(file!=null){
+                        closeQuietly(file.file);
+                    }
+                    if(last&&keepAlive){
+                        responseDone = true;
+                    }else if(last){
+                        closeAfterWrite = true;
+                        pipeline.clear();
+                    }
+                    try{
+                        onWrite();
+                    }catch(IOException e){
+                        close();
+                    }
+                }
+            });
+        }
+        void onWrite() throws IOException{
+            if(!key.isValid()){
+                return;
+            }
+            if(!writeQueue.isEmpty()){
+                //one gathering write for everything queued, e.g. several small pipelined responses
+                long written = channel.write(writeQueue.toArray(new ByteBuffer[writeQueue.size()]));
+                long left = queued.addAndGet(-written);
+                if(left<=MAX_QUEUED_BYTES&&left+written>MAX_QUEUED_BYTES){
+                    signalDrained();
+                }
+                while(!writeQueue.isEmpty()&&!writeQueue.peek().hasRemaining()){
+                    ByteBuffer done = writeQueue.poll();
+                    if(pooled.remove(done)){
+                        BufferPool.release(done);
+                    }
+                }
+                if(!writeQueue.isEmpty()){
+                    updateInterest();
+                    return;
+                }
+            }
+            if(region!=null){
+                if(!region.transfer(channel)){
+                    updateInterest();
+                    return;
+                }
+                region = null;
+            }
+            if(closeAfterWrite){
+                close();
+                return;
+            }
+            if(responseDone){
+                responseDone = false;
+                busy = false;
+                lastActive = System.currentTimeMillis();
+                if(receiving!=null&&receiving==inFlight){
+                    //the handler left part of the body unread, a client still waiting for 100 Continue never sends it
+                    if(receiving.expectContinue&&receiving.decoder.total==0){
+                        close();
+                        return;
+                    }
+                    receiving.pipe.discard = true;
+                }
+                inFlight = null;
+                next();
+                return;
+            }
+            updateInterest();
+        }
+        //a handler waiting for body bytes that do not come counts as idle too
+        boolean isIdle(long now){
+            return writeQueue.isEmpty()&&region==null&&now-lastActive>keepAliveTimeout
+                    &&(!busy&&pipeline.isEmpty()||receiving!=null&&receiving==inFlight&&receiving.pipe.available()==0);
+        }
+        //blocks a handler thread while too many of its response bytes wait for the socket
+        void awaitDrain() throws IOException{
+            if(queued.get()<=MAX_QUEUED_BYTES||Thread.currentThread()==loop.thread){
+                return;
+            }
+            drainLock.lock();
+            try{
+                while(queued.get()>MAX_QUEUED_BYTES&&channel.isOpen()){
+                    drained.await();
+                }
+            }catch(InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException();
+            }finally{
+                drainLock.unlock();
+            }
+            if(!channel.isOpen()){
+                throw new IOException("connection closed");
+            }
+        }
+        private void signalDrained(){
+            drainLock.lock();
+            try{
+                drained.signalAll();
+            }finally{
+                drainLock.unlock();
+            }
+        }
+        void close(){
+            if(region!=null){
+                closeQuietly(region.file);
+                region = null;
+            }
+            for(ByteBuffer buffer : pooled){
+                BufferPool.release(buffer);
+            }
+            pooled.clear();
+            writeQueue.clear();
+            if(receiving!=null){
+                receiving.pipe.finish(new EOFException("connection closed"));
+                receiving = null;
+            }
+            if(key!=null){
+                key.cancel();
+            }
+            closeQuietly(channel);
+            signalDrained();
+        }
+    }
+    //response side of a nio connection, bytes are collected in pooled direct buffers that the loop writes
+    //and hands back to the pool, a full buffer is queued right away
+    private static class NioOutputStream extends OutputStream implements BodySink{
+        private final NioConnection connection;
+        Response response;
+        //taken on the first write
+        private ByteBuffer buffer;
+        private boolean closed = false;
+        NioOutputStream(NioConnection connection){
+            this.connection = connection;
+        }
+        @Override
+        public void write(int b) throws IOException{
+            ensureOpen();
+            if(buffer==null){
+                buffer = BufferPool.acquire();
+            }
+            buffer.put((byte) b);
+            if(!buffer.hasRemaining()){
+                flush();
+            }
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            ensureOpen();
+            while(len>0){
+                if(buffer==null){
+                    buffer = BufferPool.acquire();
+                }
+                int n = Math.min(len, buffer.remaining());
+                buffer.put(b, off, n);
+                off += n;
+                len -= n;
+                //large bodies go out in pieces instead of piling up in memory
+                if(!buffer.hasRemaining()){
+                    flush();
+                }
+            }
+        }
+        @Override
+        public void flush() throws IOException{
+            ensureOpen();
+            if(buffer!=null&&buffer.position()>0){
+                connection.send(take(), true, null, false, false);
+            }
+            connection.awaitDrain();
+        }
+        //the response is complete, the connection stays open if the response allows keep-alive
+        @Override
+        public void close(){
+            finish(response!=null&&response.keepAlive);
+        }
+        void finish(boolean keepAlive){
+            if(closed){
+                return;
+            }
+            closed = true;
+            ByteBuffer last = take();
+            connection.send(last, last!=null, null, true, keepAlive);
+        }
+        //the loop sends the file with transferTo after the buffered headers, that ends the response
+        @Override
+        public void sendFile(FileChannel file, long position, long count) throws IOException{
+            if(closed){
+                closeQuietly(file);
+                throw new IOException("response already ended");
+            }
+            closed = true;
+            ByteBuffer head = take();
+            connection.send(head, head!=null, new FileRegion(file, position, count), true, response!=null&&response.keepAlive);
+        }
+        //the loop writes the body buffer itself, a mapped or direct buffer is never copied
+        @Override
+        public void sendBuffer(ByteBuffer body) throws IOException{
+            ensureOpen();
+            closed = true;
+            ByteBuffer head = take();
+            if(head!=null){
+                connection.send(head, true, null, false, false);
+            }
+            connection.send(body, true, response!=null&&response.keepAlive);
+        }
+        //the filled buffer ready to be written, null if nothing was written into it
+        private ByteBuffer take(){
+            ByteBuffer filled = buffer;
+            buffer = null;
+            if(filled!=null&&filled.position()==0){
+                BufferPool.release(filled);
+                return null;
+            }
+            if(filled!=null){
+                filled.flip();
+            }
+            return filled;
+        }
+        boolean isClosed(){
+            return closed;
+        }
+        private void ensureOpen() throws IOException{
+            if(closed){
+                throw new IOException("response already ended");
+            }
+        }
+    }
+    //part of a file written by the event loop once the buffers queued before it are out
+    private static class FileRegion{
+        final FileChannel file;
+        private long position;
+        private final long end;
+        FileRegion(FileChannel file, long position, long count){
+            this.file = file;
+            this.position = position;
+            this.end = position+count;
+        }
+        //false while the socket cannot take more
+        boolean transfer(SocketChannel channel) throws IOException{
+            while(position<end){
+                long n = file.transferTo(position, end-position, channel);
+                if(n==0){
+                    if(position>=file.size()){
+                        throw new EOFException("file is shorter than the response");
+                    }
+                    return false;
+                }
+                position += n;
+            }
+            file.close();
+            return true;
+        }
+    }
+    //response streams that write a body straight from a file or buffer, both end the response,
+    //sendFile closes the file channel
+    private interface BodySink{
+        void sendFile(FileChannel file, long position, long count) throws IOException;
+        void sendBuffer(ByteBuffer body) throws IOException;
+    }
+    private class NioExchange implements ConnectionTask{
+        private final NioConnection connection;
+        private final RawRequest raw;
+        private final int served;
+        private NioOutputStream out;
+        //set while an async handler has the request, the exchange is dispatched again when it is settled
+        private AsyncExchange async;
+        NioExchange(NioConnection connection, RawRequest raw, int served){
+            this.connection = connection;
+            this.raw = raw;
+            this.served = served;
+        }
+        @Override
+        public void run(){
+            boolean suspended = false;
+            try{
+                if(async!=null){
+                    //a context that may still be in a handler's hands is not given to the next request
+                    if(async.finish(out)&&recycle){
+                        connection.spare.set(async.context);
+                    }
+                    return;
+                }
+                activeRequests.incrementAndGet();
+                out = new NioOutputStream(connection);
+                InputStream body = raw.pipe;
+                if(body!=null&&raw.expectContinue){
+                    body = new ContinueInputStream(body, out);
+                }
+                RouterContext context = newContext(connection.spare.getAndSet(null), raw, body, out, served, connection.channel.socket());
+                out.response = context.response;
+                CompletionStage<?> stage = handle(context);
+                if(stage!=null){
+                    suspended = true;
+                    AsyncExchange exchange = new AsyncExchange(context, this);
+                    async = exchange;
+                    exchange.start(stage);
+                    return;
+                }
+                //the next request on the connection may already be with another worker, it gets this one after that
+                if(recycle){
+                    connection.spare.set(context);
+                }
+            }catch (Exception e){
+                e.printStackTrace();
+            }finally{
+                if(!suspended){
+                    //a handler that never called end() would otherwise hold the connection forever
+                    out.finish(false);
+                    activeRequests.decrementAndGet();
+                    completedRequests.incrementAndGet();
+                }
+            }
+        }
+        //on its event loop the exchange would block the thread that feeds its body and serves the other connections
+        @Override
+        public boolean callerRuns(){
+            return false;
+        }
+        @Override
+        public void reject(boolean reply){
+            //no worker to finish a settled async request, it gets 503 unless its response was already started
+            if(out!=null){
+                if(async!=null){
+                    async.reject(out);
+                }
+                out.finish(false);
+                activeRequests.decrementAndGet();
+                completedRequests.incrementAndGet();
+                return;
+            }
+            if(reply){
+                connection.reply(503, "Service Unavailable");
+            }else{
+                connection.send(null, true, false);
+            }
+        }
+    }
+    //response side of a classic keep-alive connection, shared by all requests on the socket: close() ends one response
+    //without closing the socket, the connection flushes before it blocks on the next read,
+    //unsynchronized so blocking socket writes never pin a virtual thread
+    private static class ExchangeOutputStream extends OutputStream implements BodySink{
+        private final OutputStream out;
+        //null for sockets that were not accepted from a channel
+        private final SocketChannel channel;
+        //pooled direct buffer, taken on the first write and given back on flush(), so an idle connection holds none
+        private ByteBuffer buffer;
+        private boolean closed = false;
+        //responses ended since the last flush
+        int unflushed = 0;
+        ExchangeOutputStream(OutputStream out, SocketChannel channel){
+            this.out = out;
+            this.channel = channel;
+        }
+        @Override
+        public void write(int b) throws IOException{
+            ensureOpen();
+            if(buffer==null){
+                buffer = BufferPool.acquire();
+            }
+            if(!buffer.hasRemaining()){
+                flushBuffer();
+            }
+            buffer.put((byte) b);
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            ensureOpen();
+            if(len>=BufferPool.BUFFER_SIZE){
+                flushBuffer();
+                out.write(b, off, len);
+                return;
+            }
+            if(buffer==null){
+                buffer = BufferPool.acquire();
+            }
+            if(len>buffer.remaining()){
+                flushBuffer();
+            }
+            buffer.put(b, off, len);
+        }
+        @Override
+        public void flush() throws IOException{
+            try{
+                flushBuffer();
+            }finally{
+                if(buffer!=null){
+                    BufferPool.release(buffer);
+                    buffer = null;
+                }
+            }
+            out.flush();
+            unflushed = 0;
+        }
+        @Override
+        public void close(){
+            if(closed){
+                return;
+            }
+            closed = true;
+            unflushed++;
+        }
+        //sendfile on linux, anything transferTo could not send is copied
+        @Override
+        public void sendFile(FileChannel file, long position, long count) throws IOException{
+            try{
+                ensureOpen();
+                flushBuffer();
+                long end = position+count;
+                while(channel!=null&&position<end){
+                    long n = file.transferTo(position, end-position, channel);
+                    if(n<=0){
+                        break;
+                    }
+                    position += n;
+                }
+                copyFile(file, position, end-position, out);
+            }finally{
+                file.close();
+            }
+            close();
+        }
+        //small bodies join the headers in the buffer, large ones are written from the buffer itself
+        @Override
+        public void sendBuffer(ByteBuffer body) throws IOException{
+            ensureOpen();
+            if(buffer==null){
+                buffer = BufferPool.acquire();
+            }
+            if(body.remaining()<=buffer.remaining()){
+                buffer.put(body);
+            }else if(channel!=null){
+                flushBuffer();
+                while(body.hasRemaining()){
+                    channel.write(body);
+                }
+            }else{
+                flushBuffer();
+                writeBuffer(body, out);
+            }
+            close();
+        }
+        void open(){
+            closed = false;
+        }
+        boolean isClosed(){
+            return closed;
+        }
+        private void flushBuffer() throws IOException{
+            if(buffer==null||buffer.position()==0){
+                return;
+            }
+            buffer.flip();
+            try{
+                if(channel!=null){
+                    while(buffer.hasRemaining()){
+                        channel.write(buffer);
+                    }
+                }else{
+                    writeBuffer(buffer, out);
+                }
+            }finally{
+                buffer.clear();
+            }
+        }
+        private void ensureOpen() throws IOException{
+            if(closed){
+                throw new IOException("response already ended");
+            }
+        }
+    }
+    //direct buffers for socket writes, a socket write from one is not copied again by the jdk.
+    //server threads keep a few in a thread-local cache, everything else goes through a shared queue,
+    //with -Dhttpserver.debugBuffers=true every buffer taken is tracked and the ones not given back are
+    //reported when the server stops
+    private static class BufferPool{
+        static final int BUFFER_SIZE = 16*1024;
+        private static final int LOCAL_BUFFERS = 8;
+        private static final boolean DEBUG = Boolean.getBoolean("httpserver.debugBuffers");
+        private static final ArrayBlockingQueue<ByteBuffer> SHARED = new ArrayBlockingQueue<>(1024);
+        private static final ThreadLocal<ArrayDeque<ByteBuffer>> LOCAL = new ThreadLocal<>();
+        private static final Map<ByteBuffer, Throwable> TAKEN = new IdentityHashMap<>();
+        //only worker and event loop threads get a cache, a virtual thread would take its cache with it
+        static void attach(){
+            LOCAL.set(new ArrayDeque<ByteBuffer>(LOCAL_BUFFERS));
+        }
+        static void detach(){
+            ArrayDeque<ByteBuffer> local = LOCAL.get();
+            LOCAL.remove();
+            if(local!=null){
+                for(ByteBuffer buffer : local){
+                    SHARED.offer(buffer);
+                }
+            }
+        }
+        static ByteBuffer acquire(){
+            ArrayDeque<ByteBuffer> local = LOCAL.get();
+            ByteBuffer buffer = local==null?null:local.poll();
+            if(buffer==null){
+                buffer = SHARED.poll();
+            }
+            if(buffer==null){
+                buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            }
+            buffer.clear();
+            if(DEBUG){
+                synchronized(TAKEN){
+                    TAKEN.put(buffer, new Throwable("buffer taken by "+Thread.currentThread().getName()));
+                }
+            }
+            return buffer;
+        }
+        static void release(ByteBuffer buffer){
+            if(DEBUG){
+                synchronized(TAKEN){
+                    if(TAKEN.remove(buffer)==null){
+                        Log.error("buffer given back twice");
+                        new Throwable().printStackTrace();
+                        return;
+                    }
+                }
+            }
+            ArrayDeque<ByteBuffer> local = LOCAL.get();
+            if(local!=null&&local.size()<LOCAL_BUFFERS){
+                local.push(buffer);
+                return;
+            }
+            //a full pool lets the garbage collector free it
+            SHARED.offer(buffer);
+        }
+        static void reportLeaks(){
+            if(!DEBUG){
+                return;
+            }
+            synchronized(TAKEN){
+                for(Throwable taken : TAKEN.values()){
+                    Log.error("buffer never given back");
+                    taken.printStackTrace();
+                }
+                TAKEN.clear();
+            }
+        }
+    }
+    private static class BadRequestException extends IOException{
+        private static final long serialVersionUID = 1L;
+        final int status;
+        final String reason;
+        BadRequestException(int status, String reason){
+            super(status+" "+reason);
+            this.status = status;
+            this.reason = reason;
+        }
+    }
+    //bytes read from a blocking socket that nobody consumed yet, shared by the head parser and the body stream
+    private static class SocketBuffer{
+        private final InputStream in;
+        //flushed before every blocking read so responses to earlier requests are not held back
+        private final OutputStream out;
+        byte[] data = new byte[4096];
+        int start = 0;
+        int length = 0;
+        SocketBuffer(InputStream in, OutputStream out){
+            this.in = in;
+            this.out = out;
+        }
+        //the parser expects a request to start at index 0
+        void compact(){
+            if(start>0){
+                System.arraycopy(data, start, data, 0, length-start);
+                length -= start;
+                start = 0;
+            }
+        }
+        //returns the next request if it is already buffered, otherwise flushes and blocks until it is,
+        //null when the stream ended between requests
+        RawRequest readRequest(RequestParser parser, long maxBodySize) throws IOException{
+            compact();
+            while(true){
+                int frame = -1;
+                if(parser.parse(data, length)){
+                    frame = parser.frameLength(maxBodySize);
+                    if(frame<=length){
+                        RawRequest request = parser.take(data, frame, maxBodySize);
+                        start = frame;
+                        parser.reset();
+                        return request;
+                    }
+                }
+                if(length==data.length){
+                    data = Arrays.copyOf(data, Math.max(data.length*2, frame));
+                }
+                if(fill()<0){
+                    if(length==0){
+                        return null;
+                    }
+                    throw new EOFException("connection closed in the middle of a request");
+                }
+            }
+        }
+        int fill() throws IOException{
+            if(out!=null){
+                out.flush();
+            }
+            int n = in.read(data, length, data.length-length);
+            if(n>0){
+                length += n;
+            }
+            return n;
+        }
+    }
+    //push decoder for a request body, Content-Length or chunked: consume() eats framing bytes and reports
+    //where the next run of content is, so the content can be copied straight out of the read buffer
+    private static class BodyDecoder{
+        private static final int DATA = 0, SIZE = 1, EXTENSION = 2, DATA_END = 3, TRAILER = 4, DONE = 5;
+        private final boolean chunked;
+        private final long limit;
+        private int state;
+        private long remaining;
+        private long total = 0;
+        private int digits = 0;
+        private int lineLength = 0;
+        //content found by the last consume() call
+        int contentOffset, contentLength;
+        BodyDecoder(long length, boolean chunked, long limit){
+            this.chunked = chunked;
+            this.limit = limit;
+            if(chunked){
+                state = SIZE;
+            }else{
+                remaining = length;
+                state = length>0?DATA:DONE;
+            }
+        }
+        boolean isDone(){
+            return state==DONE;
+        }
+        //reads data[off..end) up to and including at most max content bytes, returns the number of bytes consumed
+        int consume(byte[] data, int off, int end, int max) throws BadRequestException{
+            contentLength = 0;
+            int i = off;
+            while(i<end&&state!=DONE){
+                if(state==DATA){
+                    int n = (int) Math.min(remaining, Math.min(end-i, max));
+                    contentOffset = i;
+                    contentLength = n;
+                    remaining -= n;
+                    total += n;
+                    if(total>limit){
+                        throw new BadRequestException(413, "Payload Too Large");
+                    }
+                    if(remaining==0){
+                        state = chunked?DATA_END:DONE;
+                    }
+                    return i+n-off;
+                }
+                byte b = data[i++];
+                if(state==SIZE){
+                    int digit = Character.digit(b, 16);
+                    if(digit>=0&&digits<15){
+                        digits++;
+                        remaining = remaining*16+digit;
+                    }else if(digits>0&&(b==';'||b==' '||b=='\t')){
+                        state = EXTENSION;
+                    }else if(digits>0&&b=='\n'){
+                        endOfSize();
+                    }else if(b!='\r'){
+                        throw new BadRequestException(400, "Bad Request");
+                    }
+                }else if(state==EXTENSION){
+                    if(b=='\n'){
+                        endOfSize();
+                    }else if(++lineLength>MAX_LINE_SIZE){
+                        throw new BadRequestException(400, "Bad Request");
+                    }
+                }else if(state==DATA_END){
+                    if(b=='\n'){
+                        state = SIZE;
+                    }else if(b!='\r'){
+                        throw new BadRequestException(400, "Bad Request");
+                    }
+                }else if(state==TRAILER){
+                    if(b=='\n'){
+                        if(lineLength==0){
+                            state = DONE;
+                        }
+                        lineLength = 0;
+                    }else if(b!='\r'&&++lineLength>MAX_LINE_SIZE){
+                        throw new BadRequestException(431, "Request Header Fields Too Large");
+                    }
+                }
+            }
+            return i-off;
+        }
+        private void endOfSize(){
+            digits = 0;
+            lineLength = 0;
+            state = remaining==0?TRAILER:DATA;
+        }
+    }
+    //request body on a classic connection, decoded lazily from the connection buffer and the socket
+    private static class DecodingInputStream extends InputStream{
+        private final SocketBuffer input;
+        private final BodyDecoder decoder;
+        DecodingInputStream(SocketBuffer input, BodyDecoder decoder){
+            this.input = input;
+            this.decoder = decoder;
+        }
+        @Override
+        public int read() throws IOException{
+            byte[] one = new byte[1];
+            return read(one, 0, 1)<0?-1:one[0]&0xff;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException{
+            if(len==0){
+                return 0;
+            }
+            while(!decoder.isDone()){
+                if(input.start<input.length){
+                    int n = decoder.consume(input.data, input.start, input.length, len);
+                    input.start += n;
+                    if(decoder.contentLength>0){
+                        System.arraycopy(input.data, decoder.contentOffset, b, off, decoder.contentLength);
+                        return decoder.contentLength;
+                    }
+                    continue;
+                }
+                input.start = 0;
+                input.length = 0;
+                if(input.fill()<0){
+                    throw new EOFException("connection closed in the middle of the request body");
+                }
+            }
+            return -1;
+        }
+        //reads and drops the rest of the body, false if more than max bytes are left or the body is broken
+        boolean skipRemaining(long max){
+            long skipped = 0;
+            try{
+                while(!decoder.isDone()){
+                    if(input.start<input.length){
+                        input.start += decoder.consume(input.data, input.start, input.length, Integer.MAX_VALUE);
+                        skipped += decoder.contentLength;
+                        if(skipped>max){
+                            return false;
+                        }
+                        continue;
+                    }
+                    input.start = 0;
+                    input.length = 0;
+                    if(input.fill()<0){
+                        return false;
+                    }
+                }
+                return true;
+            }catch(IOException e){
+                return false;
+            }
+        }
+    }
+    //request body on a nio connection: the event loop decodes and offers, the handler's thread reads,
+    //at most PIPE_SIZE bytes wait in between and the loop stops reading the socket while the pipe is full
+    private static class BodyPipe extends InputStream{
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final byte[] ring = new byte[PIPE_SIZE];
+        private final Runnable onSpace;
+        private int head = 0;
+        private int count = 0;
+        private boolean eof = false;
+        private boolean full = false;
+        private IOException error;
+        //the handler is done with the request, the loop drops the rest of the body
+        boolean discard = false;
+        long discarded = 0;
+        BodyPipe(Runnable onSpace){
+            this.onSpace = onSpace;
+        }
+        //loop side
+        int free(){
+            lock.lock();
+            try{
+                int free = ring.length-count;
+                full = free==0;
+                return free;
+            }finally{
+                lock.unlock();
+            }
+        }
+        void offer(byte[] src, int off, int len){
+            lock.lock();
+            try{
+                int tail = (head+count)%ring.length;
+                int first = Math.min(len, ring.length-tail);
+                System.arraycopy(src, off, ring, tail, first);
+                System.arraycopy(src, off+first, ring, 0, len-first);
+                count += len;
+                changed.signalAll();
+            }finally{
+                lock.unlock();
+            }
+        }
+        void finish(IOException e){
+            lock.lock();
+            try{
+                eof = true;
+                error = e;
+                changed.signalAll();
+            }finally{
+                lock.unlock();
+            }
+        }
+        //handler side
+        @Override
+        public int read() throws IOException{
+            byte[] one = new byte[1];
+            return read(one, 0, 1)<0?-1:one[0]&0xff;
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException{
+            if(len==0){
+                return 0;
+            }
+            boolean wake;
+            int n;
+            lock.lock();
+            try{
+                while(count==0&&!eof){
+                    try{
+                        changed.await();
+                    }catch(InterruptedException e){
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if(count==0){
+                    if(error!=null){
+                        throw error;
+                    }
+                    return -1;
+                }
+                n = Math.min(len, count);
+                int first = Math.min(n, ring.length-head);
+                System.arraycopy(ring, head, b, off, first);
+                System.arraycopy(ring, 0, b, off+first, n-first);
+                head = (head+n)%ring.length;
+                count -= n;
+                wake = full;
+                full = false;
+            }finally{
+                lock.unlock();
+            }
+            if(wake){
+                onSpace.run();
+            }
+            return n;
+        }
+        @Override
+        public int available(){
+            lock.lock();
+            try{
+                return count;
+            }finally{
+                lock.unlock();
+            }
+        }
+    }
+    //sends the interim 100 Continue before the body is read for the first time, the client holds the body back until then
+    private static class ContinueInputStream extends FilterInputStream{
+        private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        private final OutputStream out;
+        volatile boolean sent = false;
+        ContinueInputStream(InputStream in, OutputStream out){
+            super(in);
+            this.out = out;
+        }
+        @Override
+        public int read() throws IOException{
+            sendContinue();
+            return in.read();
+        }
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException{
+            sendContinue();
+            return in.read(b, off, len);
+        }
+        private void sendContinue() throws IOException{
+            if(!sent){
+                sent = true;
+                out.write(CONTINUE);
+                out.flush();
+            }
+        }
+    }
+    //resumable HTTP/1.x request head parser over raw bytes: call parse() again after every read with the new limit,
+    //it only scans bytes it has not seen yet and records offsets instead of building strings
+    private static class RequestParser{
+        private static final int REQUEST_LINE = 0, HEADERS = 1, DONE = 2;
+        private int state = REQUEST_LINE;
+        private int pos = 0;
+        private int lineStart = 0;
+        private int requestLineStart, methodEnd, uriStart, uriEnd, versionStart, versionEnd;
+        //nameStart, nameEnd, valueStart, valueEnd of every header
+        private int[] headers = new int[4*16];
+        private int headerCount = 0;
+        int headLength = 0;
+        long contentLength = -1;
+        boolean chunked = false;
+        boolean expectContinue = false;
+        void reset(){
+            state = REQUEST_LINE;
+            pos = 0;
+            lineStart = 0;
+            headerCount = 0;
+            headLength = 0;
+            contentLength = -1;
+            chunked = false;
+            expectContinue = false;
+        }
+        //scans data[pos..limit), true once the head is complete
+        boolean parse(byte[] data, int limit) throws BadRequestException{
+            while(state!=DONE&&pos<limit){
+                if(data[pos++]!='\n'){
+                    if(pos-lineStart>MAX_LINE_SIZE){
+                        throw state==REQUEST_LINE?new BadRequestException(414, "URI Too Long")
+                                :new BadRequestException(431, "Request Header Fields Too Large");
+                    }
+                    continue;
+                }
+                int lineEnd = pos-1;
+                if(lineEnd>lineStart&&data[lineEnd-1]=='\r'){
+                    lineEnd--;
+                }
+                if(state==REQUEST_LINE){
+                    //empty lines before the request line are ignored
+                    if(lineEnd>lineStart){
+                        requestLine(data, lineStart, lineEnd);
+                        state = HEADERS;
+                    }
+                }else if(lineEnd==lineStart){
+                    state = DONE;
+                    headLength = pos;
+                    if(chunked&&contentLength>=0){
+                        throw new BadRequestException(400, "Bad Request");
+                    }
+                }else{
+                    header(data, lineStart, lineEnd);
+                }
+                lineStart = pos;
+            }
+            if(state!=DONE&&pos>MAX_HEADER_SIZE){
+                throw new BadRequestException(431, "Request Header Fields Too Large");
+            }
+            return state==DONE;
+        }
+        private void requestLine(byte[] data, int start, int end) throws BadRequestException{
+            int first = indexOf(data, start, end, (byte) ' ');
+            int second = first<0?-1:indexOf(data, first+1, end, (byte) ' ');
+            if(first<=start||second<=first+1||second+1>=end||indexOf(data, second+1, end, (byte) ' ')>=0){
+                throw new BadRequestException(400, "Bad Request");
+            }
+            requestLineStart = start;
+            methodEnd = first;
+            uriStart = first+1;
+            uriEnd = second;
+            versionStart = second+1;
+            versionEnd = end;
+            if(!startsWith(data, versionStart, versionEnd, "HTTP/")){
+                throw new BadRequestException(400, "Bad Request");
+            }
+            if(!startsWith(data, versionStart, versionEnd, "HTTP/1.")){
+                throw new BadRequestException(505, "HTTP Version Not Supported");
+            }
+        }
+        private void header(byte[] data, int start, int end) throws BadRequestException{
+            int colon = indexOf(data, start, end, (byte) ':');
+            //no name, whitespace before the colon or an obsolete folded line
+            if(colon<=start||data[start]==' '||data[start]=='\t'||data[colon-1]==' '||data[colon-1]=='\t'){
+                throw new BadRequestException(400, "Bad Request");
+            }
+            if(headerCount==MAX_HEADERS){
+                throw new BadRequestException(431, "Request Header Fields Too Large");
+            }
+            int valueStart = colon+1;
+            int valueEnd = end;
+            while(valueStart<valueEnd&&(data[valueStart]==' '||data[valueStart]=='\t')){
+                valueStart++;
+            }
+            while(valueEnd>valueStart&&(data[valueEnd-1]==' '||data[valueEnd-1]=='\t')){
+                valueEnd--;
+            }
+            if(headers.length==headerCount*4){
+                headers = Arrays.copyOf(headers, headers.length*2);
+            }
+            int i = headerCount*4;
+            headers[i] = start;
+            headers[i+1] = colon;
+            headers[i+2] = valueStart;
+            headers[i+3] = valueEnd;
+            headerCount++;
+            if(equalsIgnoreCase(data, start, colon, "Content-Length")){
+                long length = parseLength(data, valueStart, valueEnd);
+                if(length<0||(contentLength>=0&&contentLength!=length)){
+                    throw new BadRequestException(400, "Bad Request");
+                }
+                contentLength = length;
+            }else if(equalsIgnoreCase(data, start, colon, "Transfer-Encoding")){
+                if(valueEnd-valueStart<7||!equalsIgnoreCase(data, valueEnd-7, valueEnd, "chunked")){
+                    throw new BadRequestException(501, "Not Implemented");
+                }
+                chunked = true;
+            }else if(equalsIgnoreCase(data, start, colon, "Expect")){
+                if(!equalsIgnoreCase(data, valueStart, valueEnd, "100-continue")){
+                    throw new BadRequestException(417, "Expectation Failed");
+                }
+                expectContinue = true;
+            }
+        }
+        //head plus the body bytes read before dispatch, only valid once the head is complete
+        int frameLength(long maxBodySize) throws BadRequestException{
+            if(contentLength>maxBodySize){
+                throw new BadRequestException(413, "Payload Too Large");
+            }
+            return streamed()?headLength:headLength+(int) Math.max(0, contentLength);
+        }
+        //chunked, large and expect-continue bodies are read by the handler while it runs
+        boolean streamed(){
+            return chunked||contentLength>EAGER_BODY_SIZE||expectContinue&&contentLength>0;
+        }
+        //copies the framed request out of data, a streamed body gets a decoder for what follows
+        RawRequest take(byte[] data, int frame, long maxBodySize){
+            RawRequest request = new RawRequest(Arrays.copyOf(data, frame), layout());
+            if(streamed()){
+                request.decoder = new BodyDecoder(contentLength, chunked, maxBodySize);
+                request.expectContinue = expectContinue;
+            }
+            return request;
+        }
+        //headLength, request line offsets, header count, then four offsets per header
+        int[] layout(){
+            int[] layout = new int[7+headerCount*4];
+            layout[0] = headLength;
+            layout[1] = requestLineStart;
+            layout[2] = methodEnd;
+            layout[3] = uriStart;
+            layout[4] = uriEnd;
+            layout[5] = versionEnd;
+            layout[6] = headerCount;
+            System.arraycopy(headers, 0, layout, 7, headerCount*4);
+            return layout;
+        }
+        private static int indexOf(byte[] data, int start, int end, byte b){
+            for(int i=start;i<end;i++){
+                if(data[i]==b){
+                    return i;
+                }
+            }
+            return -1;
+        }
+        private static boolean startsWith(byte[] data, int start, int end, String prefix){
+            if(end-start<prefix.length()){
+                return false;
+            }
+            for(int i=0;i<prefix.length();i++){
+                if(data[start+i]!=prefix.charAt(i)){
+                    return false;
+                }
+            }
+            return true;
+        }
+        static boolean equalsIgnoreCase(byte[] data, int start, int end, String s){
+            if(end-start!=s.length()){
+                return false;
+            }
+            for(int i=0;i<s.length();i++){
+                int a = data[start+i];
+                int b = s.charAt(i);
+                if(a==b){
+                    continue;
+                }
+                if(a>='A'&&a<='Z'){
+                    a += 32;
+                }
+                if(b>='A'&&b<='Z'){
+                    b += 32;
+                }
+                if(a!=b){
+                    return false;
+                }
+            }
+            return true;
+        }
+        private static long parseLength(byte[] data, int start, int end){
+            if(start==end||end-start>18){
+                return -1;
+            }
+            long value = 0;
+            for(int i=start;i<end;i++){
+                if(data[i]<'0'||data[i]>'9'){
+                    return -1;
+                }
+                value = value*10+(data[i]-'0');
+            }
+            return value;
+        }
+    }
+    //a framed request, copied out of the connection buffer so the worker owns it
+    private static class RawRequest{
+        final byte[] data;
+        final int[] layout;
+        //set when the body is streamed after the head
+        BodyDecoder decoder;
+        boolean expectContinue;
+        //nio only, filled by the event loop
+        BodyPipe pipe;
+        RawRequest(byte[] data, int[] layout){
+            this.data = data;
+            this.layout = layout;
+        }
+    }
+    //response head as it is built, ascii is copied as is and anything else goes in as utf-8 like before
+    private static class HeadBuffer{
+        private byte[] bytes = new byte[512];
+        private int count = 0;
+        HeadBuffer append(byte[] b){
+            ensure(b.length);
+            System.arraycopy(b, 0, bytes, count, b.length);
+            count += b.length;
+            return this;
+        }
+        HeadBuffer append(String s){
+            int length = s.length();
+            ensure(length);
+            for(int i=0;i<length;i++){
+                char c = s.charAt(i);
+                if(c>=0x80){
+                    return append(s.substring(i).getBytes(StandardCharsets.UTF_8));
+                }
+                bytes[count++] = (byte) c;
+            }
+            return this;
+        }
+        HeadBuffer append(long value){
+            if(value<0){
+                return append(Long.toString(value));
+            }
+            int digits = 1;
+            for(long v=value/10;v>0;v/=10){
+                digits++;
+            }
+            ensure(digits);
+            for(int i=count+digits-1;i>=count;i--){
+                bytes[i] = (byte) ('0'+value%10);
+                value /= 10;
+            }
+            count += digits;
+            return this;
+        }
+        void writeTo(OutputStream out) throws IOException{
+            out.write(bytes, 0, count);
+        }
+        void reset(){
+            if(bytes.length>8192){
+                bytes = new byte[512];
+            }
+            count = 0;
+        }
+        private void ensure(int length){
+            if(count+length>bytes.length){
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length*2, count+length));
+            }
+        }
+    }
+    //"name: value\r\n" in the bytes that go on the wire
+    private static byte[] header(String name, String value){
+        return (name+": "+value+"\r\n").getBytes(StandardCharsets.UTF_8);
+    }
+    //the Date header only changes once a second, a daemon thread renders it so a response just copies the bytes
+    private static class Clock{
+        static volatile byte[] dateHeader = render();
+        static{
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while(true){
+                        try{
+                            Thread.sleep(1000-System.currentTimeMillis()%1000);
+                        }catch(InterruptedException e){
+                            return;
+                        }
+                        dateHeader = render();
+                    }
+                }
+            }, "http-date");
+            thread.setDaemon(true);
+            thread.start();
+        }
+        private static byte[] render(){
+            return header("Date", httpDate(System.currentTimeMillis()));
+        }
+    }
+    //gzip or zlib (Content-Encoding: deflate) compression with a Deflater from a pool, flush() sends everything
+    //written so far with a sync flush, close() finishes the stream and closes the target
+    private static class CompressingOutputStream extends OutputStream{
+        private static final byte[] GZIP_HEADER = {0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+        private final OutputStream out;
+        private final boolean gzip;
+        private Deflater deflater;
+        private final CRC32 crc;
+        private final byte[] buffer = new byte[8192];
+        private long size = 0;
+        CompressingOutputStream(OutputStream out, boolean gzip) throws IOException{
+            this.out = out;
+            this.gzip = gzip;
+            deflater = (gzip?GZIP_DEFLATERS:ZLIB_DEFLATERS).poll();
+            if(deflater==null){
+                deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+            }
+            crc = gzip?new CRC32():null;
+            if(gzip){
+                out.write(GZIP_HEADER);
+            }
+        }
+        @Override
+        public void write(int b) throws IOException{
+            write(new byte[]{(byte) b}, 0, 1);
+        }
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException{
+            ensureOpen();
+            if(len==0){
+                return;
+            }
+            if(crc!=null){
+                crc.update(b, off, len);
+            }
+            size += len;
+            deflater.setInput(b, off, len);
+            while(!deflater.needsInput()){
+                deflate(Deflater.NO_FLUSH);
+            }
+        }
+        @Override
+        public void flush() throws IOException{
+            ensureOpen();
+            while(deflate(Deflater.SYNC_FLUSH)==buffer.length){
+            }
+            out.flush();
+        }
+        @Override
+        public void close() throws IOException{
+            if(deflater==null){
+                return;
+            }
+            try{
+                deflater.finish();
+                while(!deflater.finished()){
+                    deflate(Deflater.NO_FLUSH);
+                }
+                if(gzip){
+                    writeInt((int) crc.getValue());
+                    writeInt((int) size);
+                }
+            }finally{
+                deflater.reset();
+                if(!(gzip?GZIP_DEFLATERS:ZLIB_DEFLATERS).offer(deflater)){
+                    deflater.end();
+                }
+                deflater = null;
+            }
+            out.close();
+        }
+        private int deflate(int flush) throws IOException{
+            int n = deflater.deflate(buffer, 0, buffer.length, flush);
+            if(n>0){
+                out.write(buffer, 0, n);
+            }
+            return n;
+        }
+        //gzip trailer fields are little endian
+        private void writeInt(int value) throws IOException{
+            out.write(value&0xff);
+            out.write((value>>8)&0xff);
+            out.write((value>>16)&0xff);
+            out.write((value>>24)&0xff);
+        }
+        private void ensureOpen() throws IOException{
+            if(deflater==null){
+                throw new IOException("response already ended");
+            }
+        }
+    }
+    //copies a file region through a pooled buffer, for streams that cannot use transferTo
+    private static void copyFile(FileChannel file, long position, long count, OutputStream out) throws IOException{
+        if(count<=0){
+            return;
+        }
+        byte[] buffer = COPY_BUFFERS.poll();
+        if(buffer==null){
+            buffer = new byte[COPY_BUFFER_SIZE];
+        }
+        try{
+            ByteBuffer wrapped = ByteBuffer.wrap(buffer);
+            while(count>0){
+                wrapped.clear();
+                wrapped.limit((int) Math.min(buffer.length, count));
+                int n = file.read(wrapped, position);
+                if(n<0){
+                    throw new EOFException("file is shorter than the response");
+                }
+                out.write(buffer, 0, n);
+                position += n;
+                count -= n;
+            }
+        }finally{
+            COPY_BUFFERS.offer(buffer);
+        }
+    }
+    private static void writeBuffer(ByteBuffer body, OutputStream out) throws IOException{
+        if(body.hasArray()){
+            out.write(body.array(), body.arrayOffset()+body.position(), body.remaining());
+            body.position(body.limit());
+            return;
+        }
+        byte[] buffer = COPY_BUFFERS.poll();
+        if(buffer==null){
+            buffer = new byte[COPY_BUFFER_SIZE];
+        }
+        try{
+            while(body.hasRemaining()){
+                int n = Math.min(buffer.length, body.remaining());
+                body.get(buffer, 0, n);
+                out.write(buffer, 0, n);
+            }
+        }finally{
+            COPY_BUFFERS.offer(buffer);
+        }
+    }
+    private static void closeQuietly(Closeable closeable){
+        try{
+            closeable.close();
+        }catch(IOException e){
+            Log.error(e.getMessage());
+        }
+    }
+
+    public static String getContentType(String uri){
+        if(uri.lastIndexOf(".")>=0){
+            String extension = "";
+            if(uri.lastIndexOf("?")>=0){
+                extension = uri.substring(uri.lastIndexOf("."),uri.lastIndexOf("?"));
+            }else{
+                extension = uri.substring(uri.lastIndexOf("."));
+            }
+            if(MIME_TYPE.containsKey(extension)){
+                return MIME_TYPE.get(extension);
+            }
+        }
+        return "application/octet-stream";
+    }
+
+    //a map that is only built when it is first used, reset() makes it wait for the next request
+    private abstract static class LazyMap extends AbstractMap<String, String>{
+        private final Map<String, String> map;
+        private boolean filled = false;
+        LazyMap(Map<String, String> map){
+            this.map = map;
+        }
+        abstract void fill(Map<String, String> map);
+        private Map<String, String> map(){
+            if(!filled){
+                filled = true;
+                fill(map);
+            }
+            return map;
+        }
+        boolean isFilled(){
+            return filled;
+        }
+        void reset(){
+            if(filled){
+                map.clear();
+                filled = false;
+            }
+        }
+        @Override
+        public Set<Entry<String, String>> entrySet(){
+            return map().entrySet();
+        }
+        @Override
+        public String get(Object key){
+            return map().get(key);
+        }
+        @Override
+        public boolean containsKey(Object key){
+            return map().containsKey(key);
+        }
+        @Override
+        public String put(String key, String value){
+            return map().put(key, value);
+        }
+        @Override
+        public String remove(Object key){
+            return map().remove(key);
+        }
+        @Override
+        public int size(){
+            return map().size();
+        }
+        @Override
+        public void clear(){
+            map().clear();
+        }
+    }
+
+    //http headers: names compare ignoring ascii case, a name may repeat and get() returns its first value.
+    //entries are kept in order in parallel arrays, an open addressing table finds the first entry of a name
+    //and the later ones are chained from it. Iterating sees every entry, so a repeated name shows up once per value
+    public static class HeaderMap extends AbstractMap<String, String>{
+        //names read from a request that are spelled like one of these share the constant instead of a new String
+        private static final String[] KNOWN = {"Host", "Connection", "Accept", "Accept-Encoding", "Accept-Language",
+                "Accept-Charset", "User-Agent", "Content-Type", "Content-Length", "Content-Encoding", "Cookie", "Referer",
+                "Origin", "Cache-Control", "Pragma", "If-None-Match", "If-Modified-Since", "If-Match", "If-Range", "Range",
+                "Authorization", "Transfer-Encoding", "Expect", "Upgrade", "TE", "DNT", "X-Forwarded-For",
+                "X-Forwarded-Proto", "X-Real-IP", "X-Requested-With", "Upgrade-Insecure-Requests", "Sec-Fetch-Site",
+                "Sec-Fetch-Mode", "Sec-Fetch-Dest", "Sec-Fetch-User", "Priority", "accept", "accept-encoding",
+                "accept-language", "user-agent", "content-type", "content-length", "cookie", "host", "connection"};
+        private static final String[] KNOWN_TABLE = new String[128];
+        static{
+            for(String name : KNOWN){
+                int i = hash(name)&(KNOWN_TABLE.length-1);
+                while(KNOWN_TABLE[i]!=null){
+                    i = (i+1)&(KNOWN_TABLE.length-1);
+                }
+                KNOWN_TABLE[i] = name;
+            }
+        }
+        private String[] names = new String[16];
+        private String[] values = new String[16];
+        private int[] hashes = new int[16];
+        //next entry with the same name, -1 at the end of the chain
+        private int[] next = new int[16];
+        private int size = 0;
+        //first entry of a name plus one, 0 for a free slot
+        private int[] table = new int[32];
+        private int distinct = 0;
+        public HeaderMap add(String name, String value){
+            ensureCapacity();
+            names[size] = name;
+            values[size] = value;
+            hashes[size] = hash(name);
+            link(size++);
+            return this;
+        }
+        //a header straight from the request bytes
+        void add(byte[] data, int nameStart, int nameEnd, int valueStart, int valueEnd){
+            int length = nameEnd-nameStart;
+            int h = length==0?0:hash(length, toLowerCase(data[nameStart]), toLowerCase(data[nameStart+length/2]),
+                    toLowerCase(data[nameEnd-1]));
+            String name = known(data, nameStart, nameEnd, h);
+            if(name==null){
+                name = new String(data, nameStart, length, StandardCharsets.UTF_8);
+                h = hash(name);
+            }
+            ensureCapacity();
+            names[size] = name;
+            values[size] = new String(data, valueStart, valueEnd-valueStart, StandardCharsets.UTF_8);
+            hashes[size] = h;
+            link(size++);
+        }
+        @Override
+        public String get(Object name){
+            int i = name instanceof String?find((String) name):-1;
+            return i<0?null:values[i];
+        }
+        public List<String> getAll(String name){
+            List<String> all = new ArrayList<>();
+            for(int i=find(name);i>=0;i=next[i]){
+                all.add(values[i]);
+            }
+            return all;
+        }
+        @Override
+        public boolean containsKey(Object name){
+            return name instanceof String&&find((String) name)>=0;
+        }
+        //replaces every value of the name, returns the first of them
+        @Override
+        public String put(String name, String value){
+            int i = find(name);
+            if(i<0){
+                add(name, value);
+                return null;
+            }
+            String old = values[i];
+            values[i] = value;
+            if(next[i]>=0){
+                removeFrom(next[i], name);
+            }
+            return old;
+        }
+        //removes every value of the name, returns the first of them
+        @Override
+        public String remove(Object name){
+            int i = name instanceof String?find((String) name):-1;
+            if(i<0){
+                return null;
+            }
+            String old = values[i];
+            removeFrom(i, (String) name);
+            return old;
+        }
+        //one per name, like get() a repeated header counts once, getAll() has its other values
+        @Override
+        public int size(){
+            return distinct;
+        }
+        @Override
+        public void clear(){
+            Arrays.fill(names, 0, size, null);
+            Arrays.fill(values, 0, size, null);
+            Arrays.fill(table, 0);
+            size = 0;
+            distinct = 0;
+        }
+        @Override
+        public Set<Entry<String, String>> entrySet(){
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator(){
+                    return new Iterator<Entry<String, String>>() {
+                        private int cursor = first(0);
+                        private int last = -1;
+                        @Override
+                        public boolean hasNext(){
+                            return cursor<size;
+                        }
+                        @Override
+                        public Entry<String, String> next(){
+                            if(cursor>=size){
+                                throw new NoSuchElementException();
+                            }
+                            last = cursor;
+                            cursor = first(cursor+1);
+                            final int i = last;
+                            return new SimpleEntry<String, String>(names[i], values[i]) {
+                                @Override
+                                public String setValue(String value){
+                                    values[i] = value;
+                                    return super.setValue(value);
+                                }
+                            };
+                        }
+                        @Override
+                        public void remove(){
+                            if(last<0){
+                                throw new IllegalStateException();
+                            }
+                            //the entry stands for the name, all of its values go
+                            removeFrom(last, names[last]);
+                            cursor = first(last);
+                            last = -1;
+                        }
+                    };
+                }
+                @Override
+                public int size(){
+                    return distinct;
+                }
+            };
+        }
+        //the first entry from i on that is the first of its name
+        private int first(int i){
+            while(i<size&&find(names[i])!=i){
+                i++;
+            }
+            return i;
+        }
+        private int find(String name){
+            int h = hash(name);
+            int mask = table.length-1;
+            for(int slot=h&mask;table[slot]!=0;slot=(slot+1)&mask){
+                int i = table[slot]-1;
+                if(hashes[i]==h&&sameName(names[i], name)){
+                    return i;
+                }
+            }
+            return -1;
+        }
+        private void link(int i){
+            next[i] = -1;
+            int mask = table.length-1;
+            int slot = hashes[i]&mask;
+            for(;table[slot]!=0;slot=(slot+1)&mask){
+                int first = table[slot]-1;
+                if(hashes[first]==hashes[i]&&sameName(names[first], names[i])){
+                    while(next[first]>=0){
+                        first = next[first];
+                    }
+                    next[first] = i;
+                    return;
+                }
+            }
+            if((distinct+1)*2>table.length){
+                table = new int[table.length*2];
+                rebuild();
+                return;
+            }
+            table[slot] = i+1;
+            distinct++;
+        }
+        //drops entry i and the later entries of name
+        private void removeFrom(int i, String name){
+            for(int j=size-1;j>=i;j--){
+                if(sameName(names[j], name)){
+                    removeAt(j);
+                }
+            }
+            rebuild();
+        }
+        private void removeAt(int i){
+            System.arraycopy(names, i+1, names, i, size-i-1);
+            System.arraycopy(values, i+1, values, i, size-i-1);
+            System.arraycopy(hashes, i+1, hashes, i, size-i-1);
+            size--;
+            names[size] = null;
+            values[size] = null;
+        }
+        private void rebuild(){
+            Arrays.fill(table, 0);
+            distinct = 0;
+            int entries = size;
+            size = 0;
+            while(size<entries){
+                link(size++);
+            }
+        }
+        private void ensureCapacity(){
+            if(size==names.length){
+                names = Arrays.copyOf(names, size*2);
+                values = Arrays.copyOf(values, size*2);
+                hashes = Arrays.copyOf(hashes, size*2);
+                next = Arrays.copyOf(next, size*2);
+            }
+        }
+        private static String known(byte[] data, int start, int end, int h){
+            int mask = KNOWN_TABLE.length-1;
+            for(int slot=h&mask;KNOWN_TABLE[slot]!=null;slot=(slot+1)&mask){
+                String name = KNOWN_TABLE[slot];
+                if(name.length()!=end-start){
+                    continue;
+                }
+                int j = 0;
+                while(j<name.length()&&data[start+j]==name.charAt(j)){
+                    j++;
+                }
+                if(j==name.length()){
+                    return name;
+                }
+            }
+            return null;
+        }
+        //header names are ascii, folding just A-Z is much cheaper than equalsIgnoreCase
+        private static boolean sameName(String a, String b){
+            if(a==b){
+                return true;
+            }
+            int length = a.length();
+            if(length!=b.length()){
+                return false;
+            }
+            for(int i=0;i<length;i++){
+                char x = a.charAt(i);
+                char y = b.charAt(i);
+                if(x!=y&&toLowerCase(x)!=toLowerCase(y)){
+                    return false;
+                }
+            }
+            return true;
+        }
+        //only the length and three letters, header names are short and rarely share all of them, sameName settles the rest
+        private static int hash(String name){
+            int length = name.length();
+            return length==0?0:hash(length, toLowerCase(name.charAt(0)), toLowerCase(name.charAt(length/2)),
+                    toLowerCase(name.charAt(length-1)));
+        }
+        private static int hash(int length, int first, int middle, int last){
+            int h = ((length*31+first)*31+middle)*31+last;
+            return h^(h>>>7);
+        }
+        private static int toLowerCase(int c){
+            return c>='A'&&c<='Z'?c+32:c;
+        }
+    }
+
+    //query strings and urlencoded forms: parse() only notes where each name and value sit in the bytes,
+    //%XX and + are decoded when a value is asked for. A name may repeat, get() returns its first value
+    public static class ParamMap extends AbstractMap<String, String>{
+        //a name or value holding % or +
+        private static final int NAME_ENCODED = 1;
+        private static final int VALUE_ENCODED = 2;
+        private byte[] data;
+        //nameStart, nameEnd, valueStart, valueEnd, flags for each pair
+        private int[] spans = new int[40];
+        private int size = 0;
+        //number of different names, -1 until counted
+        private int distinct = -1;
+        private byte[] scratch;
+        //the decoded pairs once the map was written to, first value of each name, everything goes through it from then on
+        private Map<String, String> copy;
+        //"a=1&b&c=%20" from start to end, the bytes are kept and must not change
+        void parse(byte[] data, int start, int end){
+            this.data = data;
+            size = 0;
+            distinct = -1;
+            copy = null;
+            int nameStart = start;
+            int nameEnd = -1;
+            int flags = 0;
+            for(int i=start;i<=end;i++){
+                byte b = i<end?data[i]:(byte) '&';
+                if(b=='&'){
+                    if(i>nameStart){
+                        if(size*5==spans.length){
+                            spans = Arrays.copyOf(spans, spans.length*2);
+                        }
+                        int s = size++*5;
+                        spans[s] = nameStart;
+                        spans[s+1] = nameEnd<0?i:nameEnd;
+                        spans[s+2] = nameEnd<0?i:nameEnd+1;
+                        spans[s+3] = i;
+                        spans[s+4] = flags;
+                    }
+                    nameStart = i+1;
+                    nameEnd = -1;
+                    flags = 0;
+                }else if(b=='='&&nameEnd<0){
+                    nameEnd = i;
+                }else if(b=='%'||b=='+'){
+                    flags |= nameEnd<0?NAME_ENCODED:VALUE_ENCODED;
+                }
+            }
+        }
+        @Override
+        public String get(Object name){
+            if(copy!=null){
+                return copy.get(name);
+            }
+            int i = name instanceof String?indexOf((String) name, 0):-1;
+            return i<0?null:value(i);
+        }
+        public List<String> getAll(String name){
+            List<String> all = new ArrayList<>();
+            if(copy!=null){
+                if(copy.containsKey(name)){
+                    all.add(copy.get(name));
+                }
+                return all;
+            }
+            for(int i=indexOf(name, 0);i>=0;i=indexOf(name, i+1)){
+                all.add(value(i));
+            }
+            return all;
+        }
+        @Override
+        public boolean containsKey(Object name){
+            if(copy!=null){
+                return copy.containsKey(name);
+            }
+            return name instanceof String&&indexOf((String) name, 0)>=0;
+        }
+        @Override
+        public String put(String name, String value){
+            return copy().put(name, value);
+        }
+        @Override
+        public String remove(Object name){
+            return copy().remove(name);
+        }
+        private Map<String, String> copy(){
+            if(copy==null){
+                copy = new LinkedHashMap<>();
+                for(int i=first(0);i<size;i=first(i+1)){
+                    copy.put(name(i), value(i));
+                }
+            }
+            return copy;
+        }
+        //one per name, like get() a repeated name counts once, getAll() has its other values
+        @Override
+        public int size(){
+            if(copy!=null){
+                return copy.size();
+            }
+            if(distinct<0){
+                distinct = 0;
+                for(int i=first(0);i<size;i=first(i+1)){
+                    distinct++;
+                }
+            }
+            return distinct;
+        }
+        @Override
+        public void clear(){
+            data = null;
+            size = 0;
+            distinct = -1;
+            copy = null;
+        }
+        @Override
+        public Set<Entry<String, String>> entrySet(){
+            if(copy!=null){
+                return copy.entrySet();
+            }
+            return new AbstractSet<Entry<String, String>>() {
+                @Override
+                public Iterator<Entry<String, String>> iterator(){
+                    return new Iterator<Entry<String, String>>() {
+                        private int cursor = first(0);
+                        @Override
+                        public boolean hasNext(){
+                            return cursor<size;
+                        }
+                        @Override
+                        public Entry<String, String> next(){
+                            if(cursor>=size){
+                                throw new NoSuchElementException();
+                            }
+                            int i = cursor;
+                            cursor = first(cursor+1);
+                            return new SimpleImmutableEntry<>(name(i), value(i));
+                        }
+                    };
+                }
+                @Override
+                public int size(){
+                    return ParamMap.this.size();
+                }
+            };
+        }
+        //the first pair from i on that is the first of its name
+        private int first(int i){
+            while(i<size&&indexOf(name(i), 0)!=i){
+                i++;
+            }
+            return i;
+        }
+        private String name(int i){
+            int s = i*5;
+            return decode(spans[s], spans[s+1], (spans[s+4]&NAME_ENCODED)!=0);
+        }
+        private String value(int i){
+            int s = i*5;
+            return decode(spans[s+2], spans[s+3], (spans[s+4]&VALUE_ENCODED)!=0);
+        }
+        private int indexOf(String name, int from){
+            for(int i=from;i<size;i++){
+                if(nameEquals(i, name)){
+                    return i;
+                }
+            }
+            return -1;
+        }
+        //compares without building the name, unless one side is not ascii
+        private boolean nameEquals(int i, String name){
+            int s = i*5;
+            int start = spans[s];
+            int end = spans[s+1];
+            boolean encoded = (spans[s+4]&NAME_ENCODED)!=0;
+            if(!encoded&&end-start!=name.length()){
+                return false;
+            }
+            int j = 0;
+            for(int p=start;p<end;p++,j++){
+                int b = data[p];
+                if(encoded){
+                    if(b=='+'){
+                        b = ' ';
+                    }else if(b=='%'&&p+2<end&&hex(data[p+1])>=0&&hex(data[p+2])>=0){
+                        b = (byte) (hex(data[p+1])<<4|hex(data[p+2]));
+                        p += 2;
+                    }
+                }
+                if(b<0||j<name.length()&&name.charAt(j)>=0x80){
+                    return decode(start, end, encoded).equals(name);
+                }
+                if(j>=name.length()||name.charAt(j)!=b){
+                    return false;
+                }
+            }
+            return j==name.length();
+        }
+        private String decode(int start, int end, boolean encoded){
+            if(!encoded){
+                return new String(data, start, end-start, StandardCharsets.UTF_8);
+            }
+            if(scratch==null||scratch.length<end-start){
+                scratch = new byte[Math.max(64, end-start)];
+            }
+            int n = 0;
+            for(int p=start;p<end;p++){
+                byte b = data[p];
+                if(b=='+'){
+                    b = ' ';
+                }else if(b=='%'&&p+2<end&&hex(data[p+1])>=0&&hex(data[p+2])>=0){
+                    b = (byte) (hex(data[p+1])<<4|hex(data[p+2]));
+                    p += 2;
+                }
+                scratch[n++] = b;
+            }
+            return new String(scratch, 0, n, StandardCharsets.UTF_8);
+        }
+        private static int hex(byte b){
+            if(b>='0'&&b<='9'){
+                return b-'0';
+            }
+            if(b>='a'&&b<='f'){
+                return b-'a'+10;
+            }
+            if(b>='A'&&b<='F'){
+                return b-'A'+10;
+            }
+            return -1;
+        }
     }
-    public void setLogHandler(HttpServer.LogHandler handler){
-        Log.handler = handler;
+
+    //a multipart body that could not be read, status and reason say how to answer the client
+    public static class MultipartException extends IOException{
+        private static final long serialVersionUID = 1L;
+        public final int status;
+        public final String reason;
+        public MultipartException(int status, String reason, String message){
+            super(status+" "+reason+": "+message);
+            this.status = status;
+            this.reason = reason;
+        }
     }
-    public void start() throws IOException{
-        if(serverSocket==null){
-            serverSocket = new ServerSocket(port);
-            Log.info("HttpServer start on port: "+port);
+    //multipart/form-data read straight from the body stream, only one buffer of it is in memory at a time.
+    //read(request, handler) hands every part to the handler as it arrives, read(request) collects them:
+    //parts up to memoryThreshold stay in memory, larger ones are written to temp files
+    public static class Multipart{
+        private long maxPartSize = Long.MAX_VALUE;
+        private long maxTotalSize = Long.MAX_VALUE;
+        private int memoryThreshold = 64*1024;
+        private File tempDir;
+        //a larger part fails with 413
+        public Multipart setMaxPartSize(long max){
+            maxPartSize = max;
+            return this;
         }
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                while(!isClosed()){
-                    try{
-                        Socket socket = serverSocket.accept();
-                        //Log.info(socket.getInetAddress().getHostAddress()+" connected");
-                        service(socket);
-                    }catch (IOException e){
-                        Log.error(e.getMessage());
-                        e.printStackTrace();
+        //the whole body, boundaries and part headers included
+        public Multipart setMaxTotalSize(long max){
+            maxTotalSize = max;
+            return this;
+        }
+        public Multipart setMemoryThreshold(int threshold){
+            memoryThreshold = threshold;
+            return this;
+        }
+        //null for the system temp directory
+        public Multipart setTempDir(File dir){
+            tempDir = dir;
+            return this;
+        }
+        //the part stream ends at the next boundary, whatever the handler leaves unread is skipped
+        public void read(Request request, PartHandler handler) throws IOException{
+            PartReader reader = new PartReader(request.getBodyStream(), boundary(request.getHeader("Content-Type")),
+                    maxPartSize, maxTotalSize);
+            Part part;
+            while((part = reader.next())!=null){
+                handler.handle(part, reader.current);
+            }
+        }
+        //the caller deletes the temp files with Part.delete() when done, they are already gone if this throws
+        public List<Part> read(Request request) throws IOException{
+            final List<Part> parts = new ArrayList<>();
+            final byte[] buffer = new byte[8192];
+            try{
+                read(request, new PartHandler() {
+                    @Override
+                    public void handle(Part part, InputStream in) throws IOException{
+                        part.store(in, buffer, memoryThreshold, tempDir);
+                        parts.add(part);
                     }
+                });
+            }catch(IOException e){
+                for(Part part : parts){
+                    part.delete();
                 }
+                throw e;
             }
-        }).start();
-    }
-    public boolean isClosed(){
-        if(serverSocket==null){
-            return true;
+            return parts;
         }
-        return serverSocket.isClosed();
-    }
-    public void stop() throws IOException{
-        if(serverSocket!=null){
-            serverSocket.close();
+        private static byte[] boundary(String contentType) throws MultipartException{
+            if(contentType==null||!contentType.regionMatches(true, 0, "multipart/", 0, 10)){
+                throw new MultipartException(415, "Unsupported Media Type", String.valueOf(contentType));
+            }
+            Map<String, String> params = new HashMap<>();
+            parameters(contentType, params);
+            String boundary = params.get("boundary");
+            if(boundary==null||boundary.isEmpty()||boundary.length()>200){
+                throw new MultipartException(400, "Bad Request", "missing or invalid boundary");
+            }
+            return ("\r\n--"+boundary).getBytes(StandardCharsets.ISO_8859_1);
         }
-    }
-    public HttpServer addRouter(Router router){
-        routers.add(router);
-        return this;
-    }
-    public HttpServer addRouter(String path,RouterHandler handler){
-        routers.add(new Router(path,handler));
-        return this;
-    }
-
-    private void service(Socket socket){
-        new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try{
-                    Request request = new Request(socket);
-                    Response response = new Response(socket);
-                    RouterContext context = new RouterContext();
-                    context.request = request;
-                    context.response = response;
-                    context.socket = socket;
-                    Log.info(request.method+" "+request.uri);
-                    Router router = getRouter(request.uri);
-                    context.router = router;
-                    if(router==null){
-                        Log.info("no route match");
-                        defaultHandler.handle(context);
-                    }else{
-                        Log.info("router["+router.path+"]matched");
-                        router.handle(context);
+        //the name=value pairs after the first ; of a header value, quotes removed and names lower case
+        static void parameters(String value, Map<String, String> params){
+            int i = value.indexOf(';');
+            while(i>=0&&i<value.length()){
+                int start = i+1;
+                int eq = value.indexOf('=', start);
+                if(eq<0){
+                    return;
+                }
+                String name = value.substring(start, eq).trim().toLowerCase(Locale.ROOT);
+                StringBuilder text = new StringBuilder();
+                i = eq+1;
+                while(i<value.length()&&value.charAt(i)==' '){
+                    i++;
+                }
+                if(i<value.length()&&value.charAt(i)=='"'){
+                    for(i++;i<value.length()&&value.charAt(i)!='"';i++){
+                        char c = value.charAt(i);
+                        if(c=='\\'&&i+1<value.length()){
+                            c = value.charAt(++i);
+                        }
+                        text.append(c);
                     }
-                }catch (Exception e){
-                    e.printStackTrace();
+                    i = value.indexOf(';', i);
+                }else{
+                    int end = value.indexOf(';', i);
+                    text.append(value, i, end<0?value.length():end);
+                    i = end;
                 }
+                params.put(name, text.toString().trim());
             }
-        }).start();
+        }
     }
-    private Router getRouter(String url){
-        String path = url;
-        if(url.indexOf("?")>=0){
-            path = url.substring(0, url.indexOf("?"));
+    //one part of a multipart body, its content is only here once Multipart.read(request) stored it
+    public static class Part{
+        public final HeaderMap headers;
+        private final String name;
+        private final String fileName;
+        private byte[] bytes;
+        private File file;
+        private long size = 0;
+        Part(HeaderMap headers){
+            this.headers = headers;
+            Map<String, String> disposition = new HashMap<>();
+            String value = headers.get("Content-Disposition");
+            if(value!=null){
+                Multipart.parameters(value, disposition);
+            }
+            name = disposition.get("name");
+            fileName = disposition.get("filename");
+        }
+        public String getName(){
+            return name;
+        }
+        //null for a plain form field
+        public String getFileName(){
+            return fileName;
+        }
+        public String getContentType(){
+            return headers.get("Content-Type");
+        }
+        public long getSize(){
+            return size;
+        }
+        //null while the content is in memory
+        public File getFile(){
+            return file;
+        }
+        public InputStream getInputStream() throws IOException{
+            if(file!=null){
+                return new FileInputStream(file);
+            }
+            return new ByteArrayInputStream(bytes==null?new byte[0]:bytes);
+        }
+        public String getString() throws IOException{
+            if(file==null){
+                return bytes==null?"":new String(bytes, StandardCharsets.UTF_8);
+            }
+            return new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8);
+        }
+        public void delete(){
+            if(file!=null){
+                if(!file.delete()){
+                    Log.error("could not delete "+file);
+                }
+                file = null;
+            }
+            bytes = null;
         }
-        for(Router router : routers){
-            if(router.check(path)){
-                return router;
+        void store(InputStream in, byte[] buffer, int threshold, File dir) throws IOException{
+            ByteArrayOutputStream memory = new ByteArrayOutputStream();
+            OutputStream out = memory;
+            try{
+                int n;
+                while((n = in.read(buffer))>=0){
+                    size += n;
+                    if(file==null&&size>threshold){
+                        file = File.createTempFile("upload", ".part", dir);
+                        out = new FileOutputStream(file);
+                        memory.writeTo(out);
+                        memory = null;
+                    }
+                    out.write(buffer, 0, n);
+                }
+                if(file==null){
+                    bytes = memory.toByteArray();
+                }
+            }catch(IOException e){
+                closeQuietly(out);
+                delete();
+                throw e;
             }
+            out.close();
         }
-        return null;
     }
-
-    public static String getContentType(String uri){
-        if(uri.lastIndexOf(".")>=0){
-            String extension = "";
-            if(uri.lastIndexOf("?")>=0){
-                extension = uri.substring(uri.lastIndexOf("."),uri.lastIndexOf("?"));
-            }else{
-                extension = uri.substring(uri.lastIndexOf("."));
+    //finds the boundaries of a multipart body in a fixed buffer, the bytes that could still start one are held back
+    private static class PartReader{
+        private static final int MAX_HEADER_SIZE = 8192;
+        private final InputStream in;
+        //CRLF--boundary, the body is read as if it started with a CRLF so the first boundary looks like the others
+        private final byte[] delimiter;
+        private final byte[] buffer = new byte[16*1024];
+        private int head = 0;
+        private int tail = 0;
+        private final long maxPartSize;
+        private final long maxTotalSize;
+        private long total = 0;
+        //no delimiter starts before this offset, so a part read in small pieces is not searched again and again
+        private int scanned = 0;
+        private boolean done = false;
+        PartStream current;
+        PartReader(InputStream in, byte[] delimiter, long maxPartSize, long maxTotalSize){
+            this.in = in;
+            this.delimiter = delimiter;
+            this.maxPartSize = maxPartSize;
+            this.maxTotalSize = maxTotalSize;
+            buffer[tail++] = '\r';
+            buffer[tail++] = '\n';
+        }
+        Part next() throws IOException{
+            if(done){
+                return null;
             }
-            if(MIME_TYPE.containsKey(extension)){
-                return MIME_TYPE.get(extension);
+            //the rest of the last part, or the preamble before the first one
+            PartStream skipped = current!=null?current:new PartStream(Long.MAX_VALUE);
+            current = null;
+            byte[] skip = new byte[1024];
+            while(skipped.read(skip, 0, skip.length)>=0){
+            }
+            ensure(2);
+            if(buffer[head]=='-'&&buffer[head+1]=='-'){
+                done = true;
+                return null;
+            }
+            while(buffer[head]==' '||buffer[head]=='\t'){
+                head++;
+                ensure(2);
+            }
+            if(buffer[head]!='\r'||buffer[head+1]!='\n'){
+                throw new MultipartException(400, "Bad Request", "malformed boundary line");
+            }
+            head += 2;
+            Part part = new Part(readHeaders());
+            current = new PartStream(maxPartSize);
+            return part;
+        }
+        private HeaderMap readHeaders() throws IOException{
+            HeaderMap headers = new HeaderMap();
+            int size = 0;
+            while(true){
+                int end = -1;
+                for(int i=head;i+1<tail;i++){
+                    if(buffer[i]=='\r'&&buffer[i+1]=='\n'){
+                        end = i;
+                        break;
+                    }
+                }
+                if(end<0){
+                    if(size+tail-head>=MAX_HEADER_SIZE){
+                        throw new MultipartException(431, "Request Header Fields Too Large", "part headers");
+                    }
+                    fill();
+                    continue;
+                }
+                if(end==head){
+                    head += 2;
+                    return headers;
+                }
+                size += end-head+2;
+                if(size>MAX_HEADER_SIZE){
+                    throw new MultipartException(431, "Request Header Fields Too Large", "part headers");
+                }
+                int colon = head;
+                while(colon<end&&buffer[colon]!=':'){
+                    colon++;
+                }
+                if(colon==end||colon==head){
+                    throw new MultipartException(400, "Bad Request", "malformed part header");
+                }
+                int valueStart = colon+1;
+                while(valueStart<end&&(buffer[valueStart]==' '||buffer[valueStart]=='\t')){
+                    valueStart++;
+                }
+                int valueEnd = end;
+                while(valueEnd>valueStart&&(buffer[valueEnd-1]==' '||buffer[valueEnd-1]=='\t')){
+                    valueEnd--;
+                }
+                headers.add(buffer, head, colon, valueStart, valueEnd);
+                head = end+2;
+            }
+        }
+        private void ensure(int n) throws IOException{
+            while(tail-head<n){
+                fill();
+            }
+        }
+        private void fill() throws IOException{
+            if(head>0){
+                System.arraycopy(buffer, head, buffer, 0, tail-head);
+                tail -= head;
+                scanned = Math.max(0, scanned-head);
+                head = 0;
+            }
+            int n = in.read(buffer, tail, buffer.length-tail);
+            if(n<0){
+                throw new MultipartException(400, "Bad Request", "body ended before the closing boundary");
+            }
+            total += n;
+            if(total>maxTotalSize){
+                throw new MultipartException(413, "Payload Too Large", "multipart body over "+maxTotalSize+" bytes");
+            }
+            tail += n;
+        }
+        private int indexOfDelimiter(){
+            byte first = delimiter[0];
+            int last = tail-delimiter.length;
+            for(int i=Math.max(head, scanned);i<=last;i++){
+                if(buffer[i]!=first){
+                    continue;
+                }
+                int j = 1;
+                while(j<delimiter.length&&buffer[i+j]==delimiter[j]){
+                    j++;
+                }
+                if(j==delimiter.length){
+                    scanned = i;
+                    return i;
+                }
+            }
+            scanned = Math.max(scanned, last+1);
+            return -1;
+        }
+        //the content of one part, ends before the next delimiter
+        private class PartStream extends InputStream{
+            private final long limit;
+            private long size = 0;
+            private boolean ended = false;
+            private final byte[] one = new byte[1];
+            PartStream(long limit){
+                this.limit = limit;
+            }
+            @Override
+            public int read() throws IOException{
+                return read(one, 0, 1)<0?-1:one[0]&0xff;
+            }
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException{
+                if(ended){
+                    return -1;
+                }
+                if(len==0){
+                    return 0;
+                }
+                while(true){
+                    int found = indexOfDelimiter();
+                    int available = found>=0?found-head:tail-head-delimiter.length+1;
+                    if(available>0){
+                        int n = Math.min(len, available);
+                        System.arraycopy(buffer, head, b, off, n);
+                        head += n;
+                        size += n;
+                        if(size>limit){
+                            throw new MultipartException(413, "Payload Too Large", "part over "+limit+" bytes");
+                        }
+                        return n;
+                    }
+                    if(found>=0){
+                        head = found+delimiter.length;
+                        ended = true;
+                        return -1;
+                    }
+                    fill();
+                }
             }
         }
-        return "application/octet-stream";
     }
 
     public static class Request{
+        //no longer filled, requests are parsed from bytes without building the full text
         public String requestText = "";
         public String method = "GET";
         public String uri = "/";
         public String version = "HTTP/1.1";
-        public Map<String, String> headers = new HashMap<String, String>();
-        public Map<String, String> params = new HashMap<String, String>();
-        public Map<String, String> cookies = new HashMap<String, String>();
-        public String body = "";
-        public Request(Socket socket){
-            InputStream in;
-            try{
-                in = socket.getInputStream();
-                int size = in.available();
-                byte[] buffer = new byte[size];
-                in.read(buffer);
-                requestText = new String(buffer);
-                if(requestText.length()>0){
-                    String firstLine = requestText.substring(0,requestText.indexOf("\r\n"));
-                    method = firstLine.split(" ")[0];
-                    uri = firstLine.split(" ")[1];
-                    version = firstLine.split(" ")[2];
-                    String header = requestText.substring(requestText.indexOf("\r\n")+2);
-                    String[] headers = header.split("\r\n");
-                    for(String head : headers){
-                        String[] keyValue = head.split(": ");
-                        this.headers.put(keyValue[0], keyValue[1]);
-                    }
-                    body = requestText.substring(requestText.indexOf("\r\n\r\n")+4);
-                    if(uri.indexOf("?")>=0){
-                        String params = uri.substring(uri.indexOf("?")+1);
-                        String[] paramsArray = params.split("&");
-                        for(String param : paramsArray){
-                            if(param.indexOf("=")>0){
-                                String[] keyValue = param.split("=");
-                                this.params.put(keyValue[0], keyValue[1]);
-                            }else{
-                                this.params.put(param, "");
-                            }
-                        }
+        //the raw head, the maps below are only built from it when they are first used
+        private byte[] data;
+        private int[] layout;
+        private final HeaderMap headerMap = new HeaderMap();
+        private final LazyMap headerView = new LazyMap(headerMap) {
+            @Override
+            void fill(Map<String, String> map){
+                for(int i=0;layout!=null&&i<layout[6];i++){
+                    int h = 7+i*4;
+                    headerMap.add(data, layout[h], layout[h+1], layout[h+2], layout[h+3]);
+                }
+            }
+        };
+        private final ParamMap paramMap = new ParamMap();
+        private final LazyMap paramView = new LazyMap(paramMap) {
+            @Override
+            void fill(Map<String, String> map){
+                for(int i=layout==null?0:layout[3];layout!=null&&i<layout[4];i++){
+                    if(data[i]=='?'){
+                        paramMap.parse(data, i+1, layout[4]);
+                        break;
                     }
-                    if(headers.length>0){
-                        String cookies = headers[0].substring(headers[0].indexOf("Cookie: ")+"Cookie: ".length());
-                        String[] cookiesArray = cookies.split("; ");
-                        for(String cookie : cookiesArray){
-                            if(cookie.indexOf("=")>0){
-                                String[] keyValue = cookie.split("=");
-                                this.cookies.put(keyValue[0], keyValue[1]);
-                            }else{
-                                this.cookies.put(cookie, "");
-                            }
-                        }
+                }
+            }
+        };
+        private final ParamMap formMap = new ParamMap();
+        private final LazyMap formView = new LazyMap(formMap) {
+            @Override
+            void fill(Map<String, String> map){
+                String type = getHeader("Content-Type");
+                if(type==null||!type.regionMatches(true, 0, "application/x-www-form-urlencoded", 0, 33)){
+                    return;
+                }
+                if(streamed){
+                    try{
+                        readBody();
+                    }catch(IOException e){
+                        Log.error(e.getMessage());
+                        e.printStackTrace();
+                        return;
                     }
                 }
+                //a streamed body may also have been read by getBody() before the form was used
+                if(bodyBytes!=null){
+                    formMap.parse(bodyBytes, 0, bodyBytes.length);
+                }else if(layout!=null){
+                    formMap.parse(data, layout[0], data.length);
+                }
+            }
+        };
+        private final LazyMap cookieView = new LazyMap(new HashMap<String, String>()) {
+            @Override
+            void fill(Map<String, String> map){
+                String cookies = getHeader("Cookie");
+                if(cookies!=null){
+                    split(cookies, "; ", map);
+                }
+            }
+        };
+        public Map<String, String> headers = headerView;
+        public Map<String, String> params = paramView;
+        //fields of an application/x-www-form-urlencoded body, a streamed body is read when this is first used
+        public Map<String, String> form = formView;
+        public Map<String, String> cookies = cookieView;
+        //only filled up front for small Content-Length bodies, getBody() reads a streamed one
+        public String body = "";
+        private InputStream bodyStream = new ByteArrayInputStream(new byte[0]);
+        private boolean streamed = false;
+        //a streamed body once it was read, the form is parsed from it
+        private byte[] bodyBytes;
+        public Request(Socket socket){
+            try{
+                SocketBuffer input = new SocketBuffer(socket.getInputStream(), null);
+                RawRequest raw = input.readRequest(new RequestParser(), Long.MAX_VALUE);
+                if(raw==null){
+                    return;
+                }
+                InputStream body = raw.decoder==null?null:new DecodingInputStream(input, raw.decoder);
+                if(body!=null&&raw.expectContinue){
+                    body = new ContinueInputStream(body, socket.getOutputStream());
+                }
+                init(raw.data, raw.layout, body);
             }catch(Exception e){
                 e.printStackTrace();
             }
         }
-        public String getRequestUrl(){
-            if(uri.indexOf("?")>=0){
-                return uri.substring(0,uri.indexOf("?")-1);
+        public Request(byte[] data){
+            try{
+                RequestParser parser = new RequestParser();
+                if(parser.parse(data, data.length)){
+                    init(data, parser.layout(), null);
+                }
+            }catch(Exception e){
+                e.printStackTrace();
+            }
+        }
+        Request(RawRequest raw, InputStream body){
+            init(raw.data, raw.layout, body);
+        }
+        //clears what the last request left and reads the next one into this object
+        void reset(RawRequest raw, InputStream body){
+            headerView.reset();
+            paramView.reset();
+            formView.reset();
+            cookieView.reset();
+            headers = headerView;
+            params = paramView;
+            form = formView;
+            cookies = cookieView;
+            this.body = "";
+            streamed = false;
+            bodyBytes = null;
+            init(raw.data, raw.layout, body);
+        }
+        //body is null when it was read together with the head
+        private void init(byte[] data, int[] layout, InputStream body){
+            this.data = data;
+            this.layout = layout;
+            int headLength = layout[0];
+            method = new String(data, layout[1], layout[2]-layout[1], StandardCharsets.UTF_8);
+            uri = new String(data, layout[3], layout[4]-layout[3], StandardCharsets.UTF_8);
+            version = new String(data, layout[4]+1, layout[5]-layout[4]-1, StandardCharsets.UTF_8);
+            if(body==null){
+                if(data.length>headLength){
+                    this.body = new String(data, headLength, data.length-headLength, StandardCharsets.UTF_8);
+                }
+                bodyStream = new ByteArrayInputStream(data, headLength, data.length-headLength);
+            }else{
+                bodyStream = body;
+                streamed = true;
+            }
+        }
+        //"a=1&b" into a=1, b="", only the first = splits
+        private static void split(String text, String separator, Map<String, String> map){
+            int start = 0;
+            while(start<=text.length()){
+                int end = text.indexOf(separator, start);
+                if(end<0){
+                    end = text.length();
+                }
+                if(end>start){
+                    int eq = text.indexOf('=', start);
+                    if(eq>start&&eq<end){
+                        map.put(text.substring(start, eq), text.substring(eq+1, end));
+                    }else{
+                        map.put(text.substring(start, end), "");
+                    }
+                }
+                start = end+separator.length();
+            }
+        }
+        //header names are case-insensitive, until the headers map is used the raw head is searched in place
+        public String getHeader(String name){
+            if(headers==headerView){
+                return headerView.isFilled()||layout==null?headerMap.get(name):rawHeader(name);
+            }
+            String value = headers.get(name);
+            if(value!=null){
+                return value;
+            }
+            for(Map.Entry<String, String> entry : headers.entrySet()){
+                if(entry.getKey().equalsIgnoreCase(name)){
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+        //every value of a repeated header, in the order they were sent
+        public List<String> getHeaders(String name){
+            if(headers==headerView){
+                headerView.map();
+                return headerMap.getAll(name);
+            }
+            String value = getHeader(name);
+            return value==null?new ArrayList<String>():new ArrayList<>(Collections.singletonList(value));
+        }
+        //the first header of that name, like the map would answer
+        private String rawHeader(String name){
+            for(int i=0;i<layout[6];i++){
+                int h = 7+i*4;
+                int start = layout[h];
+                if(layout[h+1]-start!=name.length()){
+                    continue;
+                }
+                int j = 0;
+                while(j<name.length()&&toLowerCase(data[start+j])==toLowerCase((byte) name.charAt(j))){
+                    j++;
+                }
+                if(j==name.length()){
+                    return new String(data, layout[h+2], layout[h+3]-layout[h+2], StandardCharsets.UTF_8);
+                }
+            }
+            return null;
+        }
+        private static int toLowerCase(byte b){
+            return b>='A'&&b<='Z'?b+32:b;
+        }
+        //the body as it arrives, chunked encoding already removed, never null
+        public InputStream getBodyStream(){
+            return bodyStream;
+        }
+        public ReadableByteChannel getBodyChannel(){
+            return Channels.newChannel(bodyStream);
+        }
+        //reads what is left of a streamed body into the body field
+        public String getBody() throws IOException{
+            if(streamed){
+                readBody();
+            }
+            return body;
+        }
+        private void readBody() throws IOException{
+            streamed = false;
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int n;
+            while((n = bodyStream.read(buffer))>=0){
+                out.write(buffer, 0, n);
+            }
+            bodyBytes = out.toByteArray();
+            body = new String(bodyBytes, StandardCharsets.UTF_8);
+        }
+        //query parameters decoded, a name given more than once answers with its first value
+        public String getParam(String name){
+            return params.get(name);
+        }
+        public List<String> getParams(String name){
+            if(params==paramView){
+                paramView.map();
+                return paramMap.getAll(name);
             }
-            return uri;
+            String value = params.get(name);
+            return value==null?new ArrayList<String>():new ArrayList<>(Collections.singletonList(value));
+        }
+        public String getFormParam(String name){
+            return form.get(name);
+        }
+        public List<String> getFormParams(String name){
+            if(form==formView){
+                formView.map();
+                return formMap.getAll(name);
+            }
+            String value = form.get(name);
+            return value==null?new ArrayList<String>():new ArrayList<>(Collections.singletonList(value));
+        }
+        public String getRequestUrl(){
+            int query = uri.indexOf('?');
+            return query>=0?uri.substring(0, query):uri;
         }
     }
     public static class Response{
+        private static final byte[] CRLF = {'\r', '\n'};
+        private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+        private static final int RECYCLE_LIMIT = 64*1024;
+        //status lines and the headers most responses carry are encoded once
+        private static final String[] REASONS = new String[600];
+        private static final byte[][] STATUS_LINES = new byte[600][];
+        private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] KEEP_ALIVE = header("Connection", "keep-alive");
+        private static final byte[] CLOSE = header("Connection", "close");
+        private static final byte[] CHUNKED = header("Transfer-Encoding", "chunked");
+        private static final byte[] TEXT_HTML = header("Content-Type", "text/html;charset=utf-8");
+        private static final byte[] PLAIN_TEXT = header("Content-Type", "text/plain;charset=utf-8");
+        private static final byte[] JSON = header("Content-Type", "application/json;charset=utf-8");
+        private static final byte[] OCTET_STREAM = header("Content-Type", "application/octet-stream;charset=utf-8");
+        private static final byte[] TEXT_CSS = header("Content-Type", "text/css;charset=utf-8");
+        private static final byte[] TEXT_JS = header("Content-Type", "text/javascript;charset=utf-8");
+        private static final byte[] ERROR_PAGE = header("Content-Type", "text/html");
+        private static final byte[] NOT_FOUND_BODY = "<h1>404 Not Found</h1>".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] FORBIDDEN_BODY = "<h1>403 Forbidden</h1>".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] UNAVAILABLE_BODY = "<h1>503 Service Unavailable</h1>".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] SERVER_ERROR_BODY = "<h1>500 Internal Server Error</h1>".getBytes(StandardCharsets.ISO_8859_1);
+        private static final byte[] GATEWAY_TIMEOUT_BODY = "<h1>504 Gateway Timeout</h1>".getBytes(StandardCharsets.ISO_8859_1);
+        static{
+            String[] statuses = {"100 Continue", "101 Switching Protocols", "200 OK", "201 Created", "202 Accepted",
+                    "204 No Content", "206 Partial Content", "301 Moved Permanently", "302 Found", "303 See Other",
+                    "304 Not Modified", "307 Temporary Redirect", "308 Permanent Redirect", "400 Bad Request",
+                    "401 Unauthorized", "403 Forbidden", "404 Not Found", "405 Method Not Allowed", "408 Request Timeout",
+                    "409 Conflict", "411 Length Required", "413 Payload Too Large", "414 URI Too Long",
+                    "415 Unsupported Media Type", "416 Range Not Satisfiable", "429 Too Many Requests",
+                    "431 Request Header Fields Too Large", "500 Internal Server Error", "501 Not Implemented",
+                    "502 Bad Gateway", "503 Service Unavailable", "504 Gateway Timeout"};
+            for(String status : statuses){
+                int code = Integer.parseInt(status.substring(0, 3));
+                REASONS[code] = status.substring(4);
+                STATUS_LINES[code] = ("HTTP/1.1 "+status+"\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            }
+        }
+        //headers go straight into head, anything a handler appends here directly is sent after them
         public StringBuilder responseText = new StringBuilder();
+        private final HeadBuffer head = new HeadBuffer();
+        //set when the head is written, so a timed out async request and its late handler cannot both answer
+        private final AtomicBoolean committed = new AtomicBoolean();
+        //r404() and friends start the body with one of the constant pages
+        private byte[] cannedBody;
         public StringBuilder bodyText = new StringBuilder();
         public ByteArrayOutputStream bodyStream = new ByteArrayOutputStream();
         public OutputStream out;
+        //set by the server when the connection may serve another request, a Connection: close header clears it
+        public boolean keepAlive = false;
+        //what was put in head so far, so the server knows which of its own headers are still missing
+        private final HeaderMap headers = new HeaderMap();
+        private long contentLength = -1;
+        private int status = 200;
+        //HTTP/1.0 clients do not understand chunked bodies
+        private boolean http10 = false;
+        //the answer to HEAD has the headers of a GET but no body, sending one would break the next response on the connection
+        private boolean headRequest = false;
+        private BodyOutputStream stream;
+        private String contentType;
+        private boolean compression = false;
+        private int compressionMinSize = 1024;
+        private String acceptEncoding;
         public Response(Socket socket){
             try{
                 out = socket.getOutputStream();
@@ -212,48 +3910,112 @@ public class HttpServer {
                 e.printStackTrace();
             }
         }
+        public Response(OutputStream out){
+            this.out = out;
+        }
+        //back to a fresh response writing to out, buffers that grew past RECYCLE_LIMIT are dropped rather than kept
+        void reset(OutputStream out){
+            this.out = out;
+            head.reset();
+            committed.set(false);
+            if(responseText.capacity()>RECYCLE_LIMIT){
+                responseText = new StringBuilder();
+            }
+            responseText.setLength(0);
+            if(bodyText.capacity()>RECYCLE_LIMIT){
+                bodyText = new StringBuilder();
+            }
+            bodyText.setLength(0);
+            if(bodyStream.size()>RECYCLE_LIMIT){
+                bodyStream = new ByteArrayOutputStream();
+            }
+            bodyStream.reset();
+            cannedBody = null;
+            keepAlive = false;
+            headers.clear();
+            contentLength = -1;
+            status = 200;
+            http10 = false;
+            headRequest = false;
+            stream = null;
+            contentType = null;
+            compression = false;
+            compressionMinSize = 1024;
+            acceptEncoding = null;
+        }
         public Response setStatus(int status,String statusCode){
-            responseText.append("HTTP/1.1 ");
-            responseText.append(status);
-            responseText.append(" ");
-            responseText.append(statusCode);
-            responseText.append("\r\n");
+            this.status = status;
+            if(status>=0&&status<STATUS_LINES.length&&statusCode.equals(REASONS[status])){
+                head.append(STATUS_LINES[status]);
+                return this;
+            }
+            head.append("HTTP/1.1 ").append(status).append(" ").append(statusCode).append(CRLF);
             return this;
         }
         public Response setContentType(String contentType){
-            responseText.append("Content-Type: ");
-            responseText.append(contentType);
-            responseText.append("\r\n");
+            this.contentType = contentType;
+            headers.add("Content-Type", contentType);
+            head.append("Content-Type: ").append(contentType).append(CRLF);
             return this;
         }
-        public Response contentTextHtml(){
-            responseText.append("Content-Type: text/html;charset=utf-8\r\n");
+        private Response setContentType(String contentType, byte[] line){
+            this.contentType = contentType;
+            headers.add("Content-Type", contentType);
+            head.append(line);
             return this;
         }
+        public Response contentTextHtml(){
+            return setContentType("text/html;charset=utf-8", TEXT_HTML);
+        }
         public Response contentPlainText(){
-            responseText.append("Content-Type: text/plain;charset=utf-8\r\n");
-            return this;
+            return setContentType("text/plain;charset=utf-8", PLAIN_TEXT);
         }
         public Response contentJson(){
-            responseText.append("Content-Type: application/json;charset=utf-8\r\n");
-            return this;
+            return setContentType("application/json;charset=utf-8", JSON);
         }
         public Response contentOctetStream(){
-            responseText.append("Content-Type: application/octet-stream;charset=utf-8\r\n");
-            return this;
+            return setContentType("application/octet-stream;charset=utf-8", OCTET_STREAM);
         }
         public Response contentTextCss(){
-            responseText.append("Content-Type: text/css;charset=utf-8\r\n");
-            return this;
+            return setContentType("text/css;charset=utf-8", TEXT_CSS);
         }
         public Response contentTextJs(){
-            responseText.append("Content-Type: text/javascript;charset=utf-8\r\n");
+            return setContentType("text/javascript;charset=utf-8", TEXT_JS);
+        }
+        //compress this response if the client accepts gzip or deflate, the server default comes from HttpServer.setCompression
+        public Response setCompression(boolean enabled){
+            compression = enabled;
             return this;
         }
         public Response addHeader(String key, String value){
-            responseText.append(key+": "+value+"\r\n");
+            if(key.equalsIgnoreCase("Connection")){
+                if(value.equalsIgnoreCase("close")){
+                    keepAlive = false;
+                }
+            }else if(key.equalsIgnoreCase("Content-Length")){
+                contentLength = Long.parseLong(value.trim());
+            }else if(key.equalsIgnoreCase("Content-Type")){
+                contentType = value;
+            }
+            headers.add(key, value);
+            //the one Content-Length line is written by end or startStream from the body actually sent
+            if(!key.equalsIgnoreCase("Content-Length")){
+                head.append(key).append(": ").append(value).append(CRLF);
+            }
             return this;
         }
+        //the first value of a header added so far, Content-Length, Connection and Date are only known here once a handler set them
+        public String getHeader(String name){
+            return headers.get(name);
+        }
+        //a HEAD answer without a body keeps the length the handler announced
+        private long bodyLength(long length){
+            return headRequest&&length==0&&contentLength>=0?contentLength:length;
+        }
+        private void addContentLength(long length){
+            contentLength = length;
+            head.append(CONTENT_LENGTH).append(length).append(CRLF);
+        }
         public Response addBody(String body){
             bodyText.append(body);
             return this;
@@ -291,8 +4053,19 @@ public class HttpServer {
         }
         public Response r404(){
             setStatus(404, "Not Found");
-            setContentType("text/html");
-            addBody("<h1>404 Not Found</h1>");
+            setContentType("text/html", ERROR_PAGE);
+            cannedBody = NOT_FOUND_BODY;
+            return this;
+        }
+        //no body, the validators tell the client which version it still has
+        public Response r304(String etag, long lastModified){
+            setStatus(304, "Not Modified");
+            if(etag!=null){
+                addHeader("ETag", etag);
+            }
+            if(lastModified>0){
+                addHeader("Last-Modified", httpDate(lastModified));
+            }
             return this;
         }
         public Response r200(){
@@ -307,38 +4080,166 @@ public class HttpServer {
         }
         public Response r403(){
             setStatus(403, "Forbidden");
-            setContentType("text/html");
-            addBody("<h1>403 Forbidden</h1>");
+            setContentType("text/html", ERROR_PAGE);
+            cannedBody = FORBIDDEN_BODY;
+            return this;
+        }
+        public Response r503(){
+            setStatus(503, "Service Unavailable");
+            setContentType("text/html", ERROR_PAGE);
+            addHeader("Retry-After", "1");
+            cannedBody = UNAVAILABLE_BODY;
             return this;
         }
+        public Response r504(){
+            setStatus(504, "Gateway Timeout");
+            setContentType("text/html", ERROR_PAGE);
+            cannedBody = GATEWAY_TIMEOUT_BODY;
+            return this;
+        }
+        boolean isCommitted(){
+            return committed.get();
+        }
+        //takes the response over, false if its head was already written
+        boolean claim(){
+            return committed.compareAndSet(false, true);
+        }
+        private void commit() throws IOException{
+            if(!claim()){
+                throw new IOException("response already ended");
+            }
+        }
         public Response r500(){
             setStatus(500, "Internal Server Error");
-            setContentType("text/html");
-            addBody("<h1>500 Internal Server Error</h1>");
+            setContentType("text/html", ERROR_PAGE);
+            cannedBody = SERVER_ERROR_BODY;
             return this;
         }
         public Response r500(String s){
-            setStatus(500, "Internal Server Error");
-            setContentType("text/html");
-            addBody("<h1>500 Internal Server Error</h1>");
+            r500();
             addBody("<p>"+s+"</p>");
             return this;
         }
         public void end() throws IOException{
-            String body = bodyText.toString();
-            addHeader("Content-Length: ",""+body.length());
-            responseText.append("\r\n");
-            responseText.append(body);;
-            out.write(responseText.toString().getBytes("UTF-8"));
+            byte[] body = bodyText.length()==0?cannedBody:null;
+            if(body==null){
+                body = bodyText.toString().getBytes("UTF-8");
+                if(cannedBody!=null){
+                    body = concat(cannedBody, body);
+                }
+            }
+            body = encodeBody(body);
+            //a 304 Content-Length would describe the cached body, so it is left out
+            if(status!=304&&status!=204){
+                addContentLength(bodyLength(body.length));
+            }
+            endHeaders();
+            commit();
+            head.writeTo(out);
+            if(!headRequest){
+                out.write(body);
+            }
             out.close();
         }
         public void endBinary() throws IOException{
             byte[] bytes = bodyStream.toByteArray();
-            addHeader("Content-Length: ",""+bytes.length);
-            responseText.append("\r\n");
-            out.write(responseText.toString().getBytes("UTF-8"));
-            out.write(bodyStream.toByteArray());
+            if(cannedBody!=null){
+                bytes = concat(cannedBody, bytes);
+            }
+            bytes = encodeBody(bytes);
+            addContentLength(bodyLength(bytes.length));
+            endHeaders();
+            commit();
+            head.writeTo(out);
+            if(!headRequest){
+                out.write(bytes);
+            }
+            out.close();
+        }
+        private static byte[] concat(byte[] a, byte[] b){
+            byte[] bytes = Arrays.copyOf(a, a.length+b.length);
+            System.arraycopy(b, 0, bytes, a.length, b.length);
+            return bytes;
+        }
+        //sends the file as the body, straight from the page cache to the socket where the engine allows it
+        public void endFile(File file) throws IOException{
+            FileChannel channel = new FileInputStream(file).getChannel();
+            endFile(channel, 0, channel.size());
+        }
+        //sends the remaining bytes of the buffer as the body, the engine writes them without another copy
+        public void endBuffer(ByteBuffer body) throws IOException{
+            addContentLength(body.remaining());
+            endHeaders();
+            commit();
+            head.writeTo(out);
+            if(headRequest){
+                out.close();
+            }else if(out instanceof BodySink){
+                ((BodySink) out).sendBuffer(body);
+            }else{
+                writeBuffer(body, out);
+                out.close();
+            }
+        }
+        //sends count bytes of the file from position as the body, the channel is closed once they are sent
+        public void endFile(FileChannel file, long position, long count) throws IOException{
+            boolean handedOver = false;
+            try{
+                addContentLength(count);
+                endHeaders();
+                commit();
+                head.writeTo(out);
+                if(headRequest){
+                    out.close();
+                }else if(out instanceof BodySink){
+                    handedOver = true;
+                    ((BodySink) out).sendFile(file, position, count);
+                }else{
+                    copyFile(file, position, count, out);
+                    out.close();
+                }
+            }finally{
+                if(!handedOver){
+                    file.close();
+                }
+            }
+        }
+        //gzip or deflate if compression is on, the client accepts it and the body is worth it, null otherwise.
+        //Vary is added whenever the answer depends on Accept-Encoding, length is -1 for a streamed body
+        private String negotiateEncoding(long length){
+            if(!compression||headers.containsKey("Content-Encoding")||contentType==null||!isCompressible(contentType)||status==204||status==304
+                    ||length>=0&&length<compressionMinSize){
+                return null;
+            }
+            addHeader("Vary", "Accept-Encoding");
+            String encoding = acceptsEncoding(acceptEncoding, "gzip")?"gzip":acceptsEncoding(acceptEncoding, "deflate")?"deflate":null;
+            if(encoding!=null){
+                addHeader("Content-Encoding", encoding);
+            }
+            return encoding;
+        }
+        private byte[] encodeBody(byte[] body) throws IOException{
+            String encoding = negotiateEncoding(body.length);
+            if(encoding==null){
+                return body;
+            }
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length/4+64);
+            OutputStream out = new CompressingOutputStream(compressed, encoding.equals("gzip"));
+            out.write(body);
             out.close();
+            return compressed.toByteArray();
+        }
+        private void endHeaders(){
+            if(!headers.containsKey("Connection")){
+                head.append(keepAlive?KEEP_ALIVE:CLOSE);
+            }
+            if(!headers.containsKey("Date")){
+                head.append(Clock.dateHeader);
+            }
+            if(responseText.length()>0){
+                head.append(responseText.toString());
+            }
+            head.append(CRLF);
         }
         public void end(String body) throws IOException{
             addBody(body);
@@ -353,9 +4254,127 @@ public class HttpServer {
             out.write(body);
             out.close();*/
         }
+        //streaming mode: sends the headers now and returns the body stream, close() on it ends the response.
+        //the body is chunked unless a Content-Length header was added, write() blocks when the client reads slowly
+        public OutputStream startStream() throws IOException{
+            return startStream(contentLength);
+        }
+        public OutputStream startStream(long length) throws IOException{
+            if(stream!=null){
+                throw new IOException("response already started");
+            }
+            String encoding = negotiateEncoding(length>=0?length:contentLength);
+            if(encoding!=null){
+                //the compressed length is not known up front
+                length = -1;
+            }
+            if(length>=0){
+                addContentLength(length);
+            }else if(length<0&&http10){
+                //the end of the body is the end of the connection
+                keepAlive = false;
+            }else if(length<0){
+                head.append(CHUNKED);
+            }
+            endHeaders();
+            commit();
+            head.writeTo(out);
+            out.flush();
+            stream = new BodyOutputStream(length);
+            return encoding==null?stream:new CompressingOutputStream(stream, encoding.equals("gzip"));
+        }
+        //body of a streamed response, holds at most one buffer of it
+        private class BodyOutputStream extends OutputStream{
+            private final boolean chunked;
+            private long remaining;
+            private final byte[] buffer = new byte[8192];
+            private int count = 0;
+            private boolean closed = false;
+            BodyOutputStream(long length){
+                chunked = length<0&&!http10;
+                remaining = length<0?Long.MAX_VALUE:length;
+            }
+            @Override
+            public void write(int b) throws IOException{
+                ensureOpen(1);
+                if(count==buffer.length){
+                    flushBuffer();
+                }
+                buffer[count++] = (byte) b;
+            }
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException{
+                ensureOpen(len);
+                if(len>buffer.length-count){
+                    flushBuffer();
+                }
+                if(len>=buffer.length){
+                    writeChunk(b, off, len);
+                    return;
+                }
+                System.arraycopy(b, off, buffer, count, len);
+                count += len;
+            }
+            @Override
+            public void flush() throws IOException{
+                if(closed){
+                    return;
+                }
+                flushBuffer();
+                out.flush();
+            }
+            @Override
+            public void close() throws IOException{
+                if(closed){
+                    return;
+                }
+                flushBuffer();
+                closed = true;
+                if(chunked&&!headRequest){
+                    out.write(LAST_CHUNK);
+                }else if(!headRequest&&remaining!=Long.MAX_VALUE&&remaining>0){
+                    //shorter than announced, the client can only tell from the connection closing
+                    keepAlive = false;
+                }
+                out.close();
+            }
+            private void flushBuffer() throws IOException{
+                if(count>0){
+                    writeChunk(buffer, 0, count);
+                    count = 0;
+                }
+            }
+            private void writeChunk(byte[] b, int off, int len) throws IOException{
+                if(headRequest){
+                    return;
+                }
+                if(chunked){
+                    out.write((Integer.toHexString(len)+"\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                    out.write(b, off, len);
+                    out.write(CRLF);
+                }else{
+                    out.write(b, off, len);
+                }
+            }
+            private void ensureOpen(int len) throws IOException{
+                if(closed){
+                    throw new IOException("response already ended");
+                }
+                if(remaining!=Long.MAX_VALUE){
+                    if(len>remaining){
+                        throw new IOException("body longer than Content-Length");
+                    }
+                    remaining -= len;
+                }
+            }
+        }
     }
 
     public static HttpServer.RouterHandler staticFileHandler(File root,String path){
+        return staticFileHandler(root, path, new StaticCache(64L*1024*1024));
+    }
+    //cache may be null, then every request goes to the filesystem
+    public static HttpServer.RouterHandler staticFileHandler(final File root, final String path, final StaticCache cache){
         return new HttpServer.RouterHandler() {
             @Override
             public void handle(HttpServer.RouterContext context) throws IOException {
@@ -367,10 +4386,18 @@ public class HttpServer {
                     return;
                 }
                 url = url.substring(path.length());
+                String acceptEncoding = context.request.getHeader("Accept-Encoding");
+                StaticCache.Entry cached = cache==null?null:cache.get(url);
+                if(cached!=null){
+                    StaticCache.Entry variant = cached.select(acceptEncoding);
+                    serveFile(context, variant.contentType, variant.etag, variant.lastModified, variant.body, null,
+                            variant.encoding, cached.hasVariants());
+                    return;
+                }
                 File file = new File(root, url);
                 if(file.isDirectory()){
                     File index = new File(file, "index.html");
-                    if(!file.exists()){
+                    if(!index.exists()){
                         context.response.r404();
                         context.response.end();
                         Log.info("Get: "+url+" No index.html");
@@ -396,16 +4423,29 @@ public class HttpServer {
                 }
                 Log.info("Get file: "+file.getAbsolutePath()+", contentType: "+contentType);
                 try {
-                    FileInputStream inputStream = new FileInputStream(file);
-                    byte[] bytes = new byte[1024];
-                    int len = 0;
-                    while((len=inputStream.read(bytes))>0){
-                        context.response.addBody(bytes, 0, len);
-                    }
-                    inputStream.close();
-                    context.response.r200();
-                    context.response.setContentType(contentType);
-                    context.response.endBinary();
+                    cached = cache==null?null:cache.put(url, file, contentType);
+                    if(cached!=null){
+                        StaticCache.Entry variant = cached.select(acceptEncoding);
+                        serveFile(context, contentType, variant.etag, variant.lastModified, variant.body, null,
+                                variant.encoding, cached.hasVariants());
+                    }else{
+                        //too large to cache, .br and .gz siblings are looked up every time
+                        File br = new File(file.getPath()+".br");
+                        File gz = new File(file.getPath()+".gz");
+                        boolean vary = br.isFile()||gz.isFile();
+                        String encoding = null;
+                        if(br.isFile()&&acceptsEncoding(acceptEncoding, "br")){
+                            file = br;
+                            encoding = "br";
+                        }else if(gz.isFile()&&acceptsEncoding(acceptEncoding, "gzip")){
+                            file = gz;
+                            encoding = "gzip";
+                        }
+                        //a weak tag from size and modification time costs nothing
+                        long lastModified = file.lastModified();
+                        serveFile(context, contentType, weakETag(file.length(), lastModified, encoding), lastModified, null, file,
+                                encoding, vary);
+                    }
                     Log.info("Get: "+url+" OK");
                 } catch (IOException e) {
                     context.response.r500(e.getMessage());
@@ -416,16 +4456,499 @@ public class HttpServer {
         };
     }
 
+    //answers 304, 416, 206 or 200, the body comes from the cached buffer if there is one, otherwise from the file
+    //encoding is the Content-Encoding of a precompressed variant, vary is set when the file has such variants
+    private static void serveFile(RouterContext context, String contentType, String etag, long lastModified,
+            ByteBuffer body, File file, String encoding, boolean vary) throws IOException{
+        Response response = context.response;
+        if(notModified(context.request, etag, lastModified)){
+            response.r304(etag, lastModified);
+            if(vary){
+                response.addHeader("Vary", "Accept-Encoding");
+            }
+            response.end();
+            return;
+        }
+        long length = body!=null?body.capacity():file.length();
+        List<long[]> ranges = requestedRanges(context.request, etag, lastModified, length);
+        if(ranges!=null&&ranges.isEmpty()){
+            response.setStatus(416, "Range Not Satisfiable");
+            response.addHeader("Content-Range", "bytes */"+length);
+            response.end();
+            return;
+        }
+        if(ranges==null){
+            response.r200();
+            response.setContentType(contentType);
+            addValidators(response, etag, lastModified, encoding, vary);
+            response.addHeader("Accept-Ranges", "bytes");
+            if(body!=null){
+                response.endBuffer(body.duplicate());
+            }else{
+                response.endFile(file);
+            }
+            return;
+        }
+        response.setStatus(206, "Partial Content");
+        addValidators(response, etag, lastModified, encoding, vary);
+        response.addHeader("Accept-Ranges", "bytes");
+        if(ranges.size()==1){
+            long[] range = ranges.get(0);
+            response.setContentType(contentType);
+            response.addHeader("Content-Range", "bytes "+range[0]+"-"+range[1]+"/"+length);
+            if(body!=null){
+                response.endBuffer(slice(body, range));
+            }else{
+                response.endFile(new FileInputStream(file).getChannel(), range[0], range[1]-range[0]+1);
+            }
+            return;
+        }
+        //multipart/byteranges, the length of every part is known so the whole body has a Content-Length
+        String boundary = "RANGE_"+Long.toHexString(System.nanoTime());
+        byte[][] heads = new byte[ranges.size()][];
+        long total = 0;
+        for(int i=0;i<heads.length;i++){
+            long[] range = ranges.get(i);
+            heads[i] = ("\r\n--"+boundary+"\r\nContent-Type: "+contentType+"\r\nContent-Range: bytes "+range[0]+"-"+range[1]+"/"+length
+                    +"\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            total += heads[i].length+range[1]-range[0]+1;
+        }
+        byte[] tail = ("\r\n--"+boundary+"--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        response.setContentType("multipart/byteranges; boundary="+boundary);
+        OutputStream out = response.startStream(total+tail.length);
+        FileChannel channel = body==null?new FileInputStream(file).getChannel():null;
+        try{
+            for(int i=0;i<heads.length;i++){
+                long[] range = ranges.get(i);
+                out.write(heads[i]);
+                if(body!=null){
+                    writeBuffer(slice(body, range), out);
+                }else{
+                    copyFile(channel, range[0], range[1]-range[0]+1, out);
+                }
+            }
+            out.write(tail);
+        }finally{
+            if(channel!=null){
+                channel.close();
+            }
+        }
+        out.close();
+    }
+    private static ByteBuffer slice(ByteBuffer body, long[] range){
+        ByteBuffer slice = body.duplicate();
+        slice.limit((int) range[1]+1);
+        slice.position((int) range[0]);
+        return slice;
+    }
+    //null to send the whole file (no or unusable Range, or If-Range does not match), empty when nothing is satisfiable,
+    //otherwise first and last byte of every range
+    private static List<long[]> requestedRanges(Request request, String etag, long lastModified, long length){
+        String header = request.getHeader("Range");
+        if(header==null||!"GET".equals(request.method)){
+            return null;
+        }
+        String ifRange = request.getHeader("If-Range");
+        if(ifRange!=null){
+            ifRange = ifRange.trim();
+            if(ifRange.startsWith("\"")||ifRange.startsWith("W/")){
+                //strong comparison, a weak tag never matches
+                if(etag.startsWith("W/")||!ifRange.equals(etag)){
+                    return null;
+                }
+            }else if(lastModified<=0||parseHttpDate(ifRange)/1000!=lastModified/1000){
+                return null;
+            }
+        }
+        header = header.trim();
+        if(!header.regionMatches(true, 0, "bytes=", 0, 6)){
+            return null;
+        }
+        String[] specs = header.substring(6).split(",");
+        if(specs.length>MAX_RANGES){
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        for(String spec : specs){
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if(dash<0){
+                return null;
+            }
+            long start, end;
+            try{
+                if(dash==0){
+                    //the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if(suffix<0){
+                        return null;
+                    }
+                    if(suffix==0){
+                        continue;
+                    }
+                    start = Math.max(0, length-suffix);
+                    end = length-1;
+                }else{
+                    start = Long.parseLong(spec.substring(0, dash));
+                    end = dash==spec.length()-1?Long.MAX_VALUE:Long.parseLong(spec.substring(dash+1));
+                    if(start<0||end<start){
+                        return null;
+                    }
+                    end = Math.min(end, length-1);
+                }
+            }catch(NumberFormatException e){
+                return null;
+            }
+            if(start<length){
+                ranges.add(new long[]{start, end});
+            }
+        }
+        return ranges;
+    }
+    //If-None-Match wins over If-Modified-Since, tags are compared weakly as a GET allows
+    private static boolean notModified(Request request, String etag, long lastModified){
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if(ifNoneMatch!=null){
+            String tag = etag.startsWith("W/")?etag.substring(2):etag;
+            for(String candidate : ifNoneMatch.split(",")){
+                candidate = candidate.trim();
+                if(candidate.startsWith("W/")){
+                    candidate = candidate.substring(2);
+                }
+                if(candidate.equals("*")||candidate.equals(tag)){
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if(ifModifiedSince==null||lastModified<=0){
+            return false;
+        }
+        long since = parseHttpDate(ifModifiedSince);
+        //http dates have whole seconds
+        return since>=0&&lastModified/1000<=since/1000;
+    }
+    private static void addValidators(Response response, String etag, long lastModified, String encoding, boolean vary){
+        if(encoding!=null){
+            response.addHeader("Content-Encoding", encoding);
+        }
+        if(vary){
+            response.addHeader("Vary", "Accept-Encoding");
+        }
+        response.addHeader("ETag", etag);
+        if(lastModified>0){
+            response.addHeader("Last-Modified", httpDate(lastModified));
+        }
+    }
+    //variants of one file get different tags even if size and modification time happen to match
+    private static String weakETag(long length, long lastModified, String encoding){
+        return "W/\""+Long.toHexString(length)+"-"+Long.toHexString(lastModified)+(encoding!=null?"-"+encoding:"")+"\"";
+    }
+    //true if the coding is listed, or covered by *, without q=0
+    private static boolean acceptsEncoding(String acceptEncoding, String coding){
+        if(acceptEncoding==null){
+            return false;
+        }
+        boolean accepted = false;
+        for(String item : acceptEncoding.split(",")){
+            String[] parts = item.split(";");
+            String name = parts[0].trim();
+            boolean zero = false;
+            for(int i=1;i<parts.length;i++){
+                String param = parts[i].trim();
+                if(param.startsWith("q=")||param.startsWith("Q=")){
+                    try{
+                        zero = Double.parseDouble(param.substring(2).trim())<=0;
+                    }catch(NumberFormatException e){
+                        zero = true;
+                    }
+                }
+            }
+            if(name.equalsIgnoreCase(coding)){
+                return !zero;
+            }
+            if(name.equals("*")){
+                accepted = !zero;
+            }
+        }
+        return accepted;
+    }
+    //text, scripts, json, xml and svg, other types are usually compressed already
+    static boolean isCompressible(String contentType){
+        String type = contentType.toLowerCase();
+        return type.startsWith("text/")||type.indexOf("javascript")>=0||type.indexOf("json")>=0||type.indexOf("xml")>=0;
+    }
+    public static String httpDate(long millis){
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+    //-1 when the date cannot be parsed
+    public static long parseHttpDate(String date){
+        try{
+            return Instant.from(HTTP_DATE.parse(date.trim())).toEpochMilli();
+        }catch(DateTimeException e){
+            return -1;
+        }
+    }
+
+    //static files kept ready to send: small ones in direct buffers, large ones memory mapped,
+    //least recently used entries are evicted once the byte budget is exceeded.
+    //an entry is checked against the file (size and modification time) at most once per revalidate interval
+    public static class StaticCache{
+        private final long budget;
+        private int maxBufferedFileSize = 256*1024;
+        private long revalidateInterval = 1000;
+        private boolean compressText = true;
+        private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(64, 0.75f, true);
+        //no synchronized, a virtual thread waiting here would pin its carrier
+        private final ReentrantLock lock = new ReentrantLock();
+        private long size = 0;
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+        private final AtomicLong evictions = new AtomicLong();
+        public StaticCache(long budget){
+            this.budget = budget;
+        }
+        //files up to this size are copied into memory, larger ones are mapped
+        public StaticCache setMaxBufferedFileSize(int size){
+            maxBufferedFileSize = size;
+            return this;
+        }
+        //in milliseconds, 0 checks the file on every hit
+        public StaticCache setRevalidateInterval(long millis){
+            revalidateInterval = millis;
+            return this;
+        }
+        //keep a gzip variant of text files that have no .gz sibling, built when the file is loaded
+        public StaticCache setCompressText(boolean compress){
+            compressText = compress;
+            return this;
+        }
+        public long getHits(){
+            return hits.get();
+        }
+        public long getMisses(){
+            return misses.get();
+        }
+        public long getEvictions(){
+            return evictions.get();
+        }
+        public long getSize(){
+            lock.lock();
+            try{
+                return size;
+            }finally{
+                lock.unlock();
+            }
+        }
+        public void clear(){
+            lock.lock();
+            try{
+                entries.clear();
+                size = 0;
+            }finally{
+                lock.unlock();
+            }
+        }
+        Entry get(String url){
+            Entry entry;
+            lock.lock();
+            try{
+                entry = entries.get(url);
+            }finally{
+                lock.unlock();
+            }
+            if(entry!=null&&!entry.isFresh()){
+                remove(url, entry);
+                entry = null;
+            }
+            if(entry==null){
+                misses.incrementAndGet();
+                return null;
+            }
+            hits.incrementAndGet();
+            return entry;
+        }
+        //loads the file with its .br and .gz siblings, null when it is too large for the budget
+        Entry put(String url, File file, String contentType) throws IOException{
+            Entry entry = load(file, contentType, null);
+            if(entry==null){
+                return null;
+            }
+            entry.brotli = loadVariant(new File(file.getPath()+".br"), contentType, "br");
+            entry.gzip = loadVariant(new File(file.getPath()+".gz"), contentType, "gzip");
+            if(entry.gzip==null&&compressText&&!entry.mapped&&isCompressible(contentType)){
+                entry.gzip = gzip(entry);
+            }
+            lock.lock();
+            try{
+                Entry old = entries.put(url, entry);
+                if(old!=null){
+                    size -= old.weight();
+                }
+                size += entry.weight();
+                Iterator<Entry> iterator = entries.values().iterator();
+                while(size>budget&&iterator.hasNext()){
+                    Entry eldest = iterator.next();
+                    if(eldest==entry){
+                        continue;
+                    }
+                    iterator.remove();
+                    size -= eldest.weight();
+                    evictions.incrementAndGet();
+                }
+            }finally{
+                lock.unlock();
+            }
+            return entry;
+        }
+        private Entry loadVariant(File file, String contentType, String encoding) throws IOException{
+            return file.isFile()?load(file, contentType, encoding):null;
+        }
+        private Entry load(File file, String contentType, String encoding) throws IOException{
+            long lastModified = file.lastModified();
+            FileChannel channel = new FileInputStream(file).getChannel();
+            ByteBuffer body;
+            boolean mapped;
+            try{
+                long length = channel.size();
+                mapped = length>maxBufferedFileSize;
+                if(mapped&&length>budget/4){
+                    return null;
+                }
+                if(!mapped){
+                    body = ByteBuffer.allocateDirect((int) length);
+                    while(body.hasRemaining()){
+                        if(channel.read(body)<0){
+                            break;
+                        }
+                    }
+                    body.flip();
+                }else{
+                    //stays valid after the channel is closed, unmapped when the entry is collected
+                    body = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+                }
+            }finally{
+                channel.close();
+            }
+            return new Entry(file, lastModified, contentType, body.asReadOnlyBuffer(), mapped, encoding);
+        }
+        //compressed once when the file is loaded, kept only if it is actually smaller
+        private Entry gzip(Entry entry) throws IOException{
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+            GZIPOutputStream out = new GZIPOutputStream(compressed);
+            writeBuffer(entry.body.duplicate(), out);
+            out.close();
+            if(compressed.size()>=entry.length){
+                return null;
+            }
+            ByteBuffer body = ByteBuffer.allocateDirect(compressed.size());
+            body.put(compressed.toByteArray());
+            body.flip();
+            return new Entry(entry.file, entry.lastModified, entry.contentType, body.asReadOnlyBuffer(), false, "gzip");
+        }
+        private void remove(String url, Entry entry){
+            lock.lock();
+            try{
+                if(entries.get(url)==entry){
+                    entries.remove(url);
+                    size -= entry.weight();
+                }
+            }finally{
+                lock.unlock();
+            }
+        }
+        @Override
+        public String toString(){
+            return "size="+getSize()+", hits="+hits.get()+", misses="+misses.get()+", evictions="+evictions.get();
+        }
+        class Entry{
+            final File file;
+            final long lastModified;
+            final long length;
+            final String contentType;
+            //read only, send a duplicate()
+            final ByteBuffer body;
+            final boolean mapped;
+            //null for the file itself, otherwise the Content-Encoding of this variant
+            final String encoding;
+            //strong for buffered files (hash of the content), weak for mapped ones, computed once per loaded version
+            final String etag;
+            //compressed variants of the file, set before the entry is published
+            Entry brotli, gzip;
+            private volatile long checkedAt = System.currentTimeMillis();
+            Entry(File file, long lastModified, String contentType, ByteBuffer body, boolean mapped, String encoding){
+                this.file = file;
+                this.lastModified = lastModified;
+                this.length = body.capacity();
+                this.contentType = contentType;
+                this.body = body;
+                this.mapped = mapped;
+                this.encoding = encoding;
+                if(!mapped){
+                    CRC32 crc = new CRC32();
+                    crc.update(body.duplicate());
+                    etag = "\""+Long.toHexString(crc.getValue())+"-"+Long.toHexString(length)+"\"";
+                }else{
+                    etag = weakETag(length, lastModified, encoding);
+                }
+            }
+            boolean hasVariants(){
+                return brotli!=null||gzip!=null;
+            }
+            //the variant to send for the Accept-Encoding header, brotli first
+            Entry select(String acceptEncoding){
+                if(brotli!=null&&acceptsEncoding(acceptEncoding, "br")){
+                    return brotli;
+                }
+                if(gzip!=null&&acceptsEncoding(acceptEncoding, "gzip")){
+                    return gzip;
+                }
+                return this;
+            }
+            private long weight(){
+                return length+(brotli!=null?brotli.length:0)+(gzip!=null?gzip.length:0);
+            }
+            private boolean isFresh(){
+                long now = System.currentTimeMillis();
+                if(now-checkedAt<revalidateInterval){
+                    return true;
+                }
+                if(changed()||brotli!=null&&brotli.changed()||gzip!=null&&gzip.file!=file&&gzip.changed()){
+                    return false;
+                }
+                checkedAt = now;
+                return true;
+            }
+            private boolean changed(){
+                return file.lastModified()!=lastModified||file.length()!=length;
+            }
+        }
+    }
+
     public static class Router{
         public String path="";
         public RouterHandler handler;
+        public AsyncRouterHandler asyncHandler;
         public Router(String path, RouterHandler handler){
             this.path = path;
             this.handler = handler;
         }
+        public Router(String path, AsyncRouterHandler handler){
+            this.path = path;
+            this.asyncHandler = handler;
+        }
         public void handle(RouterContext context) throws IOException{
             handler.handle(context);
         }
+        //null when the request is already answered
+        CompletionStage<?> dispatch(RouterContext context) throws IOException{
+            if(asyncHandler==null){
+                handle(context);
+                return null;
+            }
+            return asyncHandler.handle(context);
+        }
         public Map<String,String> getPathParams(String url){
             Map<String,String> params = new HashMap<String,String>();
             String thiz[] = path.split("/");
@@ -468,15 +4991,249 @@ public class HttpServer {
         }
     }
 
+    //an immutable snapshot of the routes, nodes are only touched while the table is built
+    private static class RouteTable{
+        final List<Router> routers;
+        final RouteNode root = new RouteNode();
+        final long version;
+        RouteTable(List<Router> routers, long version){
+            this.routers = Collections.unmodifiableList(routers);
+            this.version = version;
+            for(Router router : routers){
+                root.add(router);
+            }
+        }
+    }
+    //a router as placed in one table, with the names of its ":name" segments in order
+    private static class Route{
+        final Router router;
+        final String[] params;
+        Route(Router router, String[] params){
+            this.router = router;
+            this.params = params;
+        }
+    }
+    //one node per path segment of the registered routes. Static children are kept in an open addressing table
+    //hashed like String.hashCode, so a request segment is looked up in place without cutting it out of the path
+    private static class RouteNode{
+        private String[] keys = new String[4];
+        private RouteNode[] children = new RouteNode[4];
+        private int size = 0;
+        //the ":name" child, names are kept by the routes, the position is all that matters here
+        private RouteNode param;
+        //route ending at this node, and route ending at this node with "/*"
+        private Route router;
+        private Route prefix;
+        //most captures on any route, only kept up to date on the root
+        private int params = 0;
+        void add(Router route){
+            String path = route.path;
+            RouteNode node = this;
+            List<String> names = new ArrayList<>();
+            int start = path.startsWith("/")?1:0;
+            int length = path.length();
+            while(length>start&&path.charAt(length-1)=='/'){
+                length--;
+            }
+            path = path.substring(0, length);
+            while(true){
+                int slash = path.indexOf('/', start);
+                int end = slash<0?path.length():slash;
+                if(slash<0&&end-start==1&&path.charAt(start)=='*'){
+                    if(node.prefix==null){
+                        node.prefix = new Route(route, names.toArray(new String[0]));
+                        params = Math.max(params, names.size());
+                    }
+                    return;
+                }
+                if(end>start&&path.charAt(start)==':'){
+                    if(node.param==null){
+                        node.param = new RouteNode();
+                    }
+                    node = node.param;
+                    names.add(path.substring(start+1, end));
+                }else{
+                    node = node.child(path.substring(start, end));
+                }
+                if(slash<0){
+                    if(node.router==null){
+                        node.router = new Route(route, names.toArray(new String[0]));
+                        params = Math.max(params, names.size());
+                    }
+                    return;
+                }
+                start = slash+1;
+            }
+        }
+        //start is the first char of a segment, end the end of the path without the query.
+        //the start and end of the n-th captured segment go to captures[2n] and captures[2n+1], depth is n
+        Route find(String path, int start, int end, int[] captures, int depth){
+            int slash = path.indexOf('/', start);
+            int segmentEnd = slash<0||slash>end?end:slash;
+            boolean last = segmentEnd==end;
+            RouteNode child = get(path, start, segmentEnd);
+            Route router;
+            if(child!=null){
+                router = last?child.terminal():child.find(path, segmentEnd+1, end, captures, depth);
+                if(router!=null){
+                    return router;
+                }
+            }
+            //a capture never matches an empty segment
+            if(param!=null&&segmentEnd>start){
+                captures[depth*2] = start;
+                captures[depth*2+1] = segmentEnd;
+                router = last?param.terminal():param.find(path, segmentEnd+1, end, captures, depth+1);
+                if(router!=null){
+                    return router;
+                }
+            }
+            return prefix;
+        }
+        //"/static/*" also matches "/static"
+        private Route terminal(){
+            return router!=null?router:prefix;
+        }
+        private RouteNode get(String path, int start, int end){
+            int h = 0;
+            for(int i=start;i<end;i++){
+                h = 31*h+path.charAt(i);
+            }
+            int mask = keys.length-1;
+            for(int i=spread(h)&mask;keys[i]!=null;i=(i+1)&mask){
+                if(keys[i].length()==end-start&&path.regionMatches(start, keys[i], 0, end-start)){
+                    return children[i];
+                }
+            }
+            return null;
+        }
+        private RouteNode child(String key){
+            int mask = keys.length-1;
+            int i = spread(key.hashCode())&mask;
+            for(;keys[i]!=null;i=(i+1)&mask){
+                if(keys[i].equals(key)){
+                    return children[i];
+                }
+            }
+            if((size+1)*2>keys.length){
+                grow();
+                return child(key);
+            }
+            keys[i] = key;
+            children[i] = new RouteNode();
+            size++;
+            return children[i];
+        }
+        private void grow(){
+            String[] oldKeys = keys;
+            RouteNode[] oldChildren = children;
+            keys = new String[oldKeys.length*2];
+            children = new RouteNode[oldKeys.length*2];
+            int mask = keys.length-1;
+            for(int j=0;j<oldKeys.length;j++){
+                if(oldKeys[j]!=null){
+                    int i = spread(oldKeys[j].hashCode())&mask;
+                    while(keys[i]!=null){
+                        i = (i+1)&mask;
+                    }
+                    keys[i] = oldKeys[j];
+                    children[i] = oldChildren[j];
+                }
+            }
+        }
+        private static int spread(int h){
+            return h^(h>>>16);
+        }
+    }
+
+    public enum Engine{
+        //blocking ServerSocket accept loop, NIO: Selector event loops with non-blocking sockets
+        CLASSIC, NIO
+    }
+
+    public enum ThreadMode{
+        POOL, VIRTUAL, THREAD_PER_CONNECTION
+    }
+
+    public enum RejectPolicy{
+        //answer 503 and close, run on the accept thread, or just close the socket
+        SERVICE_UNAVAILABLE, CALLER_RUNS, DROP
+    }
+
+    public static class PoolStats{
+        //requests being answered, async ones included, on both engines. a classic keep-alive connection
+        //waiting for its next request still holds a worker, poolSize shows those
+        public int active;
+        //connections on the classic engine, requests on nio, waiting for a worker
+        public int queued;
+        public int poolSize;
+        public int largestPoolSize;
+        //connections on the classic engine, requests on nio
+        public long rejected;
+        //requests answered
+        public long completed;
+        public long pinned;
+        //requests whose async handler has not completed yet
+        public int async;
+        @Override
+        public String toString(){
+            return "active="+active+", queued="+queued+", poolSize="+poolSize+", largestPoolSize="+largestPoolSize
+                    +", rejected="+rejected+", completed="+completed+", pinned="+pinned+", async="+async;
+        }
+    }
+
     public interface RouterHandler{
         public void handle(HttpServer.RouterContext context) throws IOException;
     }
+    //answers from any thread before the returned stage completes, the server ends the response if it is still open then.
+    //the context must be left alone once the stage has completed or the request timed out
+    public interface AsyncRouterHandler{
+        public CompletionStage<?> handle(HttpServer.RouterContext context) throws IOException;
+    }
+    //gets each part of a multipart body while it is read, in is only valid until handle returns
+    public interface PartHandler{
+        public void handle(HttpServer.Part part, InputStream in) throws IOException;
+    }
 
     public static class RouterContext{
         public Request request;
         public Response response;
         public Router router;
         public Socket socket;
+        //offsets of the captured segments in path, cut out only when asked for
+        private String path;
+        private int[] params;
+        private String[] paramNames;
+        private Map<String,String> pathParams;
+        void reset(){
+            router = null;
+            path = null;
+            paramNames = null;
+            pathParams = null;
+        }
+        //value of the ":name" segment of the matched route, null if the route has no such segment
+        public String getPathParam(String name){
+            if(paramNames==null){
+                return null;
+            }
+            for(int i=0;i<paramNames.length;i++){
+                if(paramNames[i].equals(name)){
+                    return path.substring(params[i*2], params[i*2+1]);
+                }
+            }
+            return null;
+        }
+        public Map<String,String> getPathParams(){
+            if(pathParams==null){
+                pathParams = new HashMap<>();
+                if(paramNames!=null){
+                    for(int i=0;i<paramNames.length;i++){
+                        pathParams.put(paramNames[i], path.substring(params[i*2], params[i*2+1]));
+                    }
+                }
+            }
+            return pathParams;
+        }
     }
 
     private static class Log{